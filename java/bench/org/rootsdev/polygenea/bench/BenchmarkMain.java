@@ -0,0 +1,35 @@
+package org.rootsdev.polygenea.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks in this package and writes their results as JSON, in
+ * JMH's standard result format, so that runs from different builds can be
+ * compared mechanically (e.g., with a JMH result visualiser or a short
+ * script).
+ * <p>
+ * Usage: {@code BenchmarkMain [result-file [size ...]]}. The result file
+ * defaults to {@code jmh-result.json}; if sizes are given they replace the
+ * default 10K, 1M and 10M node genealogies.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(BenchmarkMain.class.getPackage().getName() + "\\..*Benchmarks\\..*")
+				.resultFormat(ResultFormatType.JSON)
+				.result(args.length > 0 ? args[0] : "jmh-result.json");
+		if (args.length > 1) {
+			String[] sizes = new String[args.length - 1];
+			System.arraycopy(args, 1, sizes, 0, sizes.length);
+			options = options.param("size", sizes);
+		}
+		new Runner(options.build()).run();
+	}
+}
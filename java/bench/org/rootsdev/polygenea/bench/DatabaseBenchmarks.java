@@ -0,0 +1,92 @@
+package org.rootsdev.polygenea.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rootsdev.polygenea.Database;
+import org.rootsdev.polygenea.Node;
+
+/**
+ * Database costs. Lookups and incoming-edge queries are measured per call
+ * against a database of the requested size; adding every node and exporting
+ * the whole database are measured as single shots, since each touches every
+ * node once.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx16g" })
+public class DatabaseBenchmarks {
+	private int next;
+
+	private int next(Genealogy g) {
+		next = (next + 7919) % g.size; // stride through the ids so lookups are not sequential
+		return next;
+	}
+
+	/** A Writer that discards its input, so exports measure serialisation alone. */
+	private static final Writer NOWHERE = new Writer() {
+		public void write(char[] buf, int off, int len) {}
+
+		public void write(String s) {}
+
+		public Writer append(CharSequence cs) {
+			return this;
+		}
+
+		public void flush() {}
+
+		public void close() {}
+	};
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public Database add(Genealogy g) {
+		Database db = new Database();
+		db.add(g.nodes);
+		return db;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	public Node lookup(Genealogy g) {
+		return g.db.lookup(g.uuids[next(g)]);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	public int in(Genealogy g) {
+		Collection<Node> in = g.db.in(g.nodes[next(g)]);
+		return in.size();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public void compressedJSON(Genealogy g) throws IOException {
+		g.db.writeJSON(NOWHERE);
+	}
+}
@@ -0,0 +1,55 @@
+package org.rootsdev.polygenea.bench;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.rootsdev.polygenea.Database;
+import org.rootsdev.polygenea.Node;
+
+/**
+ * Benchmark state shared by every benchmark thread: a generated genealogy of
+ * the requested size, its JSON, and a Database holding it. Built once per
+ * trial, since building the larger sizes takes much longer than measuring
+ * them.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+@State(Scope.Benchmark)
+public class Genealogy {
+	/** How many nodes to generate. */
+	@Param({ "10000", "1000000", "10000000" })
+	public int size;
+
+	/** The generated nodes, each after the nodes it references. */
+	public Node[] nodes;
+	/** The stand-alone JSON of each node in {@link #nodes}. */
+	public String[] json;
+	/** The hashable JSON of each node in {@link #nodes}. */
+	public String[] hashable;
+	/** The UUID of each node in {@link #nodes}. */
+	public UUID[] uuids;
+	/** A database containing every node in {@link #nodes}. */
+	public Database db;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		List<Node> list = GenealogyGenerator.generate(size, 0x706f6c79L);
+		nodes = list.toArray(new Node[list.size()]);
+		json = new String[size];
+		hashable = new String[size];
+		uuids = new UUID[size];
+		for (int i = 0; i < size; i += 1) {
+			json[i] = nodes[i].toString();
+			hashable[i] = nodes[i].hashableJSON();
+			uuids[i] = nodes[i].getUUID();
+		}
+		db = new Database();
+		db.add(nodes);
+	}
+}
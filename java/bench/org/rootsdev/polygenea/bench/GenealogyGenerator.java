@@ -0,0 +1,102 @@
+package org.rootsdev.polygenea.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.rootsdev.polygenea.Node;
+import org.rootsdev.polygenea.nodes.Citation;
+import org.rootsdev.polygenea.nodes.Connection;
+import org.rootsdev.polygenea.nodes.ExternalSource;
+import org.rootsdev.polygenea.nodes.Grouping;
+import org.rootsdev.polygenea.nodes.Inference;
+import org.rootsdev.polygenea.nodes.Match;
+import org.rootsdev.polygenea.nodes.Property;
+import org.rootsdev.polygenea.nodes.Thing;
+
+/**
+ * Generates synthetic genealogies for benchmarking. The data loosely resembles
+ * transcribed census records: each record (an ExternalSource) mentions a
+ * hundred or so people, each of whom gets a Thing, a name and birth year
+ * Property, and a parent Connection to someone mentioned a little earlier.
+ * Every tenth person is grouped with two neighbours as siblings, and every
+ * twentieth is matched (through an Inference based on their names) with a
+ * duplicate mention of the same person in a second record.
+ * <p>
+ * The output is in an order that can be added to a Database directly: every
+ * node follows the nodes it references. The same seed gives the same shape of
+ * data, though Things (which have identity) get new UUIDs each time.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class GenealogyGenerator {
+	private static final String[] GIVEN = { "John", "Mary", "William", "Elizabeth", "James", "Sarah", "Thomas", "Ann", "George", "Jane", "Henry", "Margaret" };
+	private static final String[] SURNAME = { "Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson", "Davies", "Robinson", "Wright" };
+	private static final int PEOPLE_PER_RECORD = 100;
+	private static final int PARENT_WINDOW = 1000;
+
+	private final Random random;
+	private final List<Node> out;
+	private final int size;
+
+	private GenealogyGenerator(int size, long seed) {
+		this.random = new Random(seed);
+		this.out = new ArrayList<Node>(size);
+		this.size = size;
+	}
+
+	/**
+	 * @param size
+	 *            The number of nodes to generate
+	 * @param seed
+	 *            Seeds the choice of names, years and relationships
+	 * @return Exactly {@code size} nodes, each after the nodes it references
+	 */
+	public static List<Node> generate(int size, long seed) {
+		GenealogyGenerator g = new GenealogyGenerator(size, seed);
+		g.run();
+		return g.out;
+	}
+
+	/// adds n unless the output is already full; returns whether it was added
+	private boolean emit(Node n) {
+		if (out.size() >= size) return false;
+		out.add(n);
+		return true;
+	}
+
+	private void run() {
+		List<Thing> people = new ArrayList<Thing>();
+		ExternalSource record = null, duplicates = null;
+		for (int person = 0; out.size() < size; person += 1) {
+			if (person % PEOPLE_PER_RECORD == 0) {
+				int year = 1790 + 10 * (person / PEOPLE_PER_RECORD % 12);
+				Citation c = new Citation("type", "census", "year", year, "page", person / PEOPLE_PER_RECORD);
+				Citation c2 = new Citation("type", "parish register", "year", year, "page", person / PEOPLE_PER_RECORD);
+				record = new ExternalSource(c, "Household enumeration, page " + person / PEOPLE_PER_RECORD);
+				duplicates = new ExternalSource(c2, "Baptisms, page " + person / PEOPLE_PER_RECORD);
+				if (!(emit(c) && emit(c2) && emit(record) && emit(duplicates))) return;
+			}
+			String name = GIVEN[random.nextInt(GIVEN.length)] + " " + SURNAME[random.nextInt(SURNAME.length)];
+			Thing t = new Thing(record);
+			Property named = new Property(record, t, "name", name);
+			if (!(emit(t) && emit(named) && emit(new Property(record, t, "birth", String.valueOf(1700 + random.nextInt(150)))))) return;
+			if (!people.isEmpty()) {
+				Thing parent = people.get(Math.max(0, people.size() - 1 - random.nextInt(PARENT_WINDOW)));
+				if (!emit(new Connection(record, t, "parent", parent))) return;
+			}
+			people.add(t);
+			if (person % 10 == 9) {
+				int n = people.size();
+				if (!emit(new Grouping(record, "siblings", people.get(n - 1), people.get(n - 2), people.get(n - 3)))) return;
+			}
+			if (person % 20 == 19) {
+				Thing dup = new Thing(duplicates);
+				Property dupNamed = new Property(duplicates, dup, "name", name);
+				Inference why = new Inference(null, named, dupNamed);
+				if (!(emit(dup) && emit(dupNamed) && emit(why) && emit(new Match(why, t, dup)))) return;
+			}
+		}
+	}
+}
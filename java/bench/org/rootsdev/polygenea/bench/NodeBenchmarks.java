@@ -0,0 +1,54 @@
+package org.rootsdev.polygenea.bench;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rootsdev.polygenea.JSONParser;
+import org.rootsdev.polygenea.UUID5;
+
+/**
+ * Per-node costs: parsing a node's JSON, hashing it into a type-5 UUID, and
+ * producing the JSON that gets hashed. Each invocation handles the next node
+ * of the generated genealogy, so the mix of node types matches the data.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx16g" })
+public class NodeBenchmarks {
+	private int next;
+
+	private int next(Genealogy g) {
+		if (next >= g.size) next = 0;
+		return next++;
+	}
+
+	@Benchmark
+	public Object parse(Genealogy g) {
+		return JSONParser.parse(g.json[next(g)]);
+	}
+
+	@Benchmark
+	public UUID uuid5(Genealogy g) {
+		return UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, g.hashable[next(g)]);
+	}
+
+	@Benchmark
+	public String hashableJSON(Genealogy g) {
+		return g.nodes[next(g)].hashableJSON();
+	}
+}
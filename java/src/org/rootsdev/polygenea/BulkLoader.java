@@ -0,0 +1,381 @@
+package org.rootsdev.polygenea;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads newline-delimited JSON (one stand-alone node per line, as written by
+ * {@link Node#toString()}) into a {@link Database} using a pool of worker
+ * threads. Parsing, reflective construction and UUID verification (as the
+ * database's {@link Database.Verification} mode directs) all happen on the
+ * workers; only the final insert into the database is serialised.
+ * <p>
+ * Lines may appear in any order. A node whose references have not yet been
+ * constructed is parked, still parsed, until the node it is waiting for is
+ * constructed, and is then handed back to the pool. Because every line stands
+ * alone, references must be UUIDs; index references are rejected.
+ * Once a batch is in the database the loader forgets its nodes and looks
+ * them up there instead, so it only holds the nodes built but not yet
+ * inserted, and those still waiting.
+ * <p>
+ * Other threads may read the database while a load is in progress. Each
+ * batch of constructed nodes is inserted under the database's write lock, so
+ * they see all of a batch or none of it.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class BulkLoader {
+	private static final int LINES_PER_TASK = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Database db;
+	private final int threads;
+
+	/**
+	 * Creates a loader that uses one worker per available processor.
+	 *
+	 * @param db
+	 *            The database to load nodes into
+	 */
+	public BulkLoader(Database db) {
+		this(db, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param db
+	 *            The database to load nodes into
+	 * @param threads
+	 *            How many worker threads to use
+	 */
+	public BulkLoader(Database db, int threads) {
+		if (threads < 1) throw new IllegalArgumentException("A BulkLoader needs at least one thread");
+		this.db = db;
+		this.threads = threads;
+	}
+
+	/**
+	 * Loads every node in a file of UTF-8 newline-delimited JSON.
+	 *
+	 * @param ndjson
+	 *            The file to read
+	 * @return The number of nodes read (including any that were already in the
+	 *         database)
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws JSONParser.MalformedJSONException
+	 *             if a line is not valid JSON
+	 * @throws IllegalArgumentException
+	 *             if a line is not a node or refers to a node that is neither
+	 *             in the database nor in the file
+	 */
+	public int load(File ndjson) throws IOException {
+		InputStream in = new FileInputStream(ndjson);
+		try {
+			return this.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads every node in a stream of UTF-8 newline-delimited JSON. The stream
+	 * is not closed.
+	 *
+	 * @param ndjson
+	 *            The stream to read
+	 * @return The number of nodes read (including any that were already in the
+	 *         database)
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 * @throws JSONParser.MalformedJSONException
+	 *             if a line is not valid JSON
+	 * @throws IllegalArgumentException
+	 *             if a line is not a node or refers to a node that is neither
+	 *             in the database nor in the stream
+	 */
+	public int load(InputStream ndjson) throws IOException {
+		return this.load(new InputStreamReader(ndjson, UTF8));
+	}
+
+	/**
+	 * Loads every node in newline-delimited JSON. Blank lines are ignored. The
+	 * reader is not closed.
+	 *
+	 * @param ndjson
+	 *            The characters to read
+	 * @return The number of nodes read (including any that were already in the
+	 *         database)
+	 * @throws IOException
+	 *             if the reader throws one
+	 * @throws JSONParser.MalformedJSONException
+	 *             if a line is not valid JSON
+	 * @throws IllegalArgumentException
+	 *             if a line is not a node or refers to a node that is neither
+	 *             in the database nor in the input
+	 */
+	public int load(Reader ndjson) throws IOException {
+		BufferedReader in = ndjson instanceof BufferedReader ? (BufferedReader) ndjson : new BufferedReader(ndjson, 1 << 16);
+		Load load = new Load();
+		try {
+			int lineNumber = 0;
+			List<String> chunk = new ArrayList<String>(LINES_PER_TASK);
+			int first = 1;
+			for (String line = in.readLine(); line != null && load.failure.get() == null; line = in.readLine()) {
+				lineNumber += 1;
+				if (chunk.isEmpty()) first = lineNumber;
+				chunk.add(line);
+				if (chunk.size() == LINES_PER_TASK) {
+					load.submit(first, chunk);
+					chunk = new ArrayList<String>(LINES_PER_TASK);
+				}
+			}
+			if (!chunk.isEmpty()) load.submit(first, chunk);
+			load.await();
+		} finally {
+			load.pool.shutdownNow();
+		}
+		return load.finish();
+	}
+
+	/**
+	 * A line that has been parsed but not yet turned into a node.
+	 */
+	private static class Parsed {
+		final int line;
+		final SortedMap<String, Object> json;
+		final boolean trust; // the database's verification mode says not to check json's "!uuid"
+
+		Parsed(int line, SortedMap<String, Object> json, boolean trust) {
+			this.line = line;
+			this.json = json;
+			this.trust = trust;
+		}
+	}
+
+	/**
+	 * Thrown (without a stack trace) by a worker's NodeLookup when a node
+	 * refers to a node that has not been constructed yet.
+	 */
+	private static class Unresolved extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final UUID uuid;
+
+		Unresolved(UUID uuid) {
+			this.uuid = uuid;
+		}
+
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * The state of a single call to load.
+	 */
+	private class Load implements NodeLookup {
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(4 * threads); // bounds how far reading runs ahead of the workers
+		final Map<UUID, Node> resolved = new ConcurrentHashMap<UUID, Node>(); // built but not yet in the database
+		final Map<UUID, List<Parsed>> waiting = new HashMap<UUID, List<Parsed>>(); // guarded by itself
+		final AtomicInteger outstanding = new AtomicInteger(); // lines submitted but neither added, parked nor failed
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		void submit(final int first, final List<String> lines) throws IOException {
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException ex) {
+				throw new IOException("Interrupted while loading", ex);
+			}
+			outstanding.addAndGet(lines.size());
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						List<Node> made = new ArrayList<Node>(lines.size());
+						List<Node> trusted = new ArrayList<Node>();
+						for (int i = 0; i < lines.size(); i += 1) {
+							Parsed p = parse(first + i, lines.get(i));
+							if (p != null) construct(p, made, trusted);
+						}
+						insert(made, trusted);
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		}
+
+		void resubmit(final List<Parsed> parked) {
+			pool.execute(new Runnable() {
+				public void run() {
+					List<Node> made = new ArrayList<Node>(parked.size());
+					List<Node> trusted = new ArrayList<Node>();
+					for (Parsed p : parked)
+						construct(p, made, trusted);
+					insert(made, trusted);
+				}
+			});
+		}
+
+		/// returns the parsed line, or null if it is blank or (after recording a failure) not a JSON object
+		Parsed parse(int line, String text) {
+			if (failure.get() != null || text.trim().length() == 0) {
+				this.finished(1);
+				return null;
+			}
+			try {
+				Object json = JSONParser.parse(text);
+				if (!(json instanceof SortedMap<?, ?>)) throw new IllegalArgumentException("Expected a JSON object, not a " + (json == null ? null : json.getClass()));
+				@SuppressWarnings("unchecked")
+				SortedMap<String, Object> sm = (SortedMap<String, Object>) json;
+				return new Parsed(line, sm, db.trusts(sm));
+			} catch (Throwable ex) {
+				this.fail(line, ex);
+				return null;
+			}
+		}
+
+		/// builds the node for p and adds it to made (and trusted, if its UUID was not checked), or parks p until a node it refers to is built
+		void construct(Parsed p, List<Node> made, List<Node> trusted) {
+			if (failure.get() != null) {
+				this.finished(1);
+				return;
+			}
+			Node n;
+			try {
+				n = Node.fromJSON(p.json, this, p.trust);
+			} catch (Unresolved ex) {
+				this.park(p, ex.uuid);
+				return;
+			} catch (Throwable ex) {
+				this.fail(p.line, ex);
+				return;
+			}
+			resolved.put(n.getUUID(), n);
+			made.add(n);
+			if (p.trust) trusted.add(n);
+			List<Parsed> ready;
+			synchronized (waiting) {
+				ready = waiting.remove(n.getUUID());
+			}
+			if (ready != null) {
+				outstanding.addAndGet(ready.size());
+				this.resubmit(ready);
+			}
+		}
+
+		void park(Parsed p, UUID missing) {
+			synchronized (waiting) {
+				if (!resolved.containsKey(missing) && !db.contains(missing)) {
+					List<Parsed> list = waiting.get(missing);
+					if (list == null) waiting.put(missing, list = new ArrayList<Parsed>(2));
+					list.add(p);
+					this.finished(1);
+					return;
+				}
+			}
+			// resolved while p was being built; try again
+			List<Parsed> again = new ArrayList<Parsed>(1);
+			again.add(p);
+			outstanding.incrementAndGet();
+			this.resubmit(again);
+			this.finished(1);
+		}
+
+		void insert(List<Node> made, List<Node> trusted) {
+			if (made.isEmpty()) return;
+			try {
+				db.lockWrites(); // so that readers see the whole batch or none of it
+				try {
+					for (Node n : made)
+						db.lookup(n);
+					for (Node n : trusted)
+						db.trusted(db.idOf(n));
+					db.announce();
+				} finally {
+					db.unlockWrites();
+				}
+				for (Node n : made)
+					resolved.remove(n.getUUID()); // found in the database from now on
+				added.addAndGet(made.size());
+			} catch (Throwable ex) {
+				failure.compareAndSet(null, ex);
+			}
+			this.finished(made.size());
+		}
+
+		void fail(int line, Throwable ex) {
+			Throwable wrapped;
+			if (ex instanceof Error) wrapped = ex;
+			else if (ex instanceof JSONParser.MalformedJSONException) wrapped = new JSONParser.MalformedJSONException("line " + line + ": " + ex.getMessage(), ex);
+			else wrapped = new IllegalArgumentException("line " + line + ": " + ex.getMessage(), ex);
+			failure.compareAndSet(null, wrapped);
+			this.finished(1);
+		}
+
+		void finished(int lines) {
+			if (outstanding.addAndGet(-lines) == 0) {
+				synchronized (this) {
+					this.notifyAll();
+				}
+			}
+		}
+
+		synchronized void await() throws IOException {
+			try {
+				while (outstanding.get() > 0)
+					this.wait();
+			} catch (InterruptedException ex) {
+				throw new IOException("Interrupted while loading", ex);
+			}
+		}
+
+		/// reports any failure; returns the number of nodes added
+		int finish() {
+			Throwable t = failure.get();
+			if (t instanceof Error) throw (Error) t;
+			if (t != null) throw (RuntimeException) t;
+			if (!waiting.isEmpty()) {
+				int parked = 0;
+				for (List<Parsed> list : waiting.values())
+					parked += list.size();
+				UUID missing = waiting.keySet().iterator().next();
+				Parsed example = waiting.get(missing).get(0);
+				throw new IllegalArgumentException(parked + " nodes refer to nodes that are neither in the database nor in the input, such as line " + example.line + ", which refers to " + missing);
+			}
+			return added.get();
+		}
+
+		/// resolves references for the workers: nodes built during this load first, then the database
+		public Node lookup(Object o) {
+			if (o instanceof Number) throw new IllegalArgumentException("Newline-delimited nodes must refer to other nodes by UUID, not by index");
+			UUID u;
+			if (o instanceof UUID) u = (UUID) o;
+			else if (o instanceof String) u = UUID.fromString((String) o);
+			else throw new IllegalArgumentException("Expected a UUID, not " + o);
+			Node n = resolved.get(u);
+			if (n != null) return n;
+			if (db.contains(u)) return db.lookup(u); // nodes leave resolved only once they are in the database
+			throw new Unresolved(u);
+		}
+	}
+}
@@ -1,105 +1,1409 @@
 package org.rootsdev.polygenea;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.rootsdev.polygenea.nodes.Citation;
+import org.rootsdev.polygenea.nodes.Claim;
+import org.rootsdev.polygenea.nodes.Connection;
+import org.rootsdev.polygenea.nodes.ExternalSource;
+import org.rootsdev.polygenea.nodes.Grouping;
 import org.rootsdev.polygenea.nodes.Match;
+import org.rootsdev.polygenea.nodes.Note;
+import org.rootsdev.polygenea.nodes.Property;
 import org.rootsdev.polygenea.nodes.Thing;
 
 /**
  * The Database class represents a set of Node objects and provides indexed
  * performance for UUID-based node lookups and incoming edge queries.
  * <p>
- * Eventually, this class is intended to become a full disk-backed database;
- * right now it primarily serves as a NodeLookup implementation.
+ * Each node is given a dense integer id when it is added: the first node added
+ * has id 0, the next id 1, and so on. Because a node can only be added after
+ * the nodes it references, every node's id is larger than the ids of the
+ * nodes it references. Id-based variants of {@link #lookup(int)},
+ * {@link #in(int)} and {@link #out(int)} let callers work with primitive
+ * arrays rather than Node objects. Ids are stable for the life of a
+ * disk-backed database.
+ * <p>
+ * A Database is either purely in-memory or disk-backed. A disk-backed
+ * database appends every node it is given to a {@link NodeStore}; when it is
+ * reopened it reads only the store's record headers and parses each node the
+ * first time it is looked up. It keeps the nodes it has parsed only through
+ * soft references, so a database larger than the heap can still be read:
+ * nodes the garbage collector reclaims are parsed again if needed.
+ * <p>
+ * By default every node parsed from JSON has its "!uuid" checked by re-hashing
+ * its contents. When reloading data this system wrote itself, that check can be
+ * sampled or deferred instead (see {@link #setVerification(Verification)}),
+ * and the nodes that were trusted checked later with
+ * {@link #verify(int, StringBuilder)} or a {@link Verifier}.
+ * <p>
+ * A Database may be shared by several threads. Reads share a read lock, so
+ * any number of them proceed at once; each call that adds nodes holds the
+ * write lock from start to finish, so a reader sees either all of a batch
+ * given to {@link #add(Node...)} or none of it. A JSON list given to addJSON
+ * is the exception: it is parsed without the lock and added a batch of about
+ * a thousand nodes at a time, so readers wait only while each batch goes in.
+ * {@link #size()} takes no lock at all: it counts the nodes of the batches
+ * that have finished. The collections returned by the searches are views that
+ * look nodes up as they are read, and see the database as of the call that
+ * made them.
  * 
  * @author Luther Tychonievich. Released into the public domain. I would
  *         consider it a courtesy if you cite me if you benefit from this code.
  */
-public class Database implements NodeLookup, Iterable<Node> {
-	private Map<UUID, Node> all = new TreeMap<UUID, Node>();
-	private Map<Node, Set<Node>> incoming = new TreeMap<Node, Set<Node>>();
+public class Database implements NodeLookup, Iterable<Node>, Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NODES_PER_BATCH = 1024; // how many nodes of a JSON list addJSON adds under one hold of the write lock
+
+	private UUIDIndex ids; // UUID -> dense id, assigned in insertion order
+	private long[] uuids = new long[32]; // id -> UUID, as msb,lsb pairs
+	private Node[] nodes = new Node[16]; // id -> node; null if store is not
+	private long[] positions; // id -> where the node lives in store; null if store is
+	private AtomicReferenceArray<Cached> cached; // id -> node last read from store, if not yet reclaimed; null if store is
+	private final ReferenceQueue<Node> reclaimed = new ReferenceQueue<Node>(); // Cached entries whose nodes are gone
+	private int count;
+	private volatile int committed; // count when the write lock was last released; see size()
+	private int[] outStart = new int[17]; // out-edges of id are outIds[outStart[id]..outStart[id+1]-1]
+	private int[] outIds = new int[16];
+	private EdgeIndex incoming = new EdgeIndex();
+	private BitSet notes = new BitSet(); // ids of nodes for which Node.isNote() is true
+	private int noteCount;
+	private Map<Class<?>, IdList> byClass = new LinkedHashMap<Class<?>, IdList>(); // concrete class -> ids of its nodes
+	private Map<String, StringIndex> propertyValues = new HashMap<String, StringIndex>(); // Property key -> values -> ids
+	private StringIndex relations = new StringIndex(); // Connection and Grouping relation -> ids
+	private volatile int fieldsIndexed; // nodes with smaller ids are in propertyValues and relations; see indexFields()
+	private TextIndex text = new TextIndex(); // words in ExternalSource contents and Citation details
+	private BitSet things = new BitSet(); // ids of Thing nodes, including Matches
+	private Equivalences same = new Equivalences(); // Things joined by Matches
+	private Map<Integer, int[]> sameCache = new ConcurrentHashMap<Integer, int[]>(); // class root -> members
+	private Map<Integer, int[]> aboutCache = new ConcurrentHashMap<Integer, int[]>(); // class root -> claims about members
+	private NodeStore store; // null for purely in-memory databases
+	private volatile Verification verification = Verification.FULL;
+	private final AtomicInteger parsed = new AtomicInteger(); // nodes parsed under SAMPLED, to pick the sample
+	private final BitSet unverified = new BitSet(); // ids whose "!uuid" was trusted and not since checked
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private int announced; // listeners have been told about nodes with smaller ids
+	private boolean announcing; // true while listeners are being told; see announce()
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // shared by readers, held by writers for a whole batch
+
+	/**
+	 * Creates an empty, in-memory database.
+	 */
+	public Database() {
+		this.ids = new UUIDIndex();
+	}
+
+	/**
+	 * Opens a disk-backed database, creating it if needed. Every node added to
+	 * the database is appended to a {@link NodeStore} in the given directory,
+	 * and located through a memory-mapped {@link UUIDIndex} kept beside it.
+	 * Reopening only scans the record headers of the store; nodes are parsed
+	 * from disk lazily, the first time they are looked up. A stored node that
+	 * refers to a node not stored before it is still opened, without that
+	 * edge, so that a {@link Verifier} can report it; looking it up fails.
+	 * 
+	 * @param directory
+	 *            Where the database's files are kept
+	 * @throws IOException
+	 *             if the store cannot be opened or read
+	 */
+	public Database(File directory) throws IOException {
+		this.store = new NodeStore(directory);
+		boolean opened = false;
+		try {
+			this.ids = new UUIDIndex(new File(directory, "uuid.idx"));
+			this.nodes = null;
+			this.positions = new long[16];
+			this.cached = new AtomicReferenceArray<Cached>(16);
+			if (!this.scanStore() || ids.size() != count) {
+				// the index disagrees with the log (e.g., a crash truncated the log); rebuild it
+				ids.clear();
+				this.count = 0;
+				this.incoming = new EdgeIndex();
+				this.notes.clear();
+				this.noteCount = 0;
+				this.byClass.clear();
+				this.propertyValues.clear();
+				this.relations = new StringIndex();
+				this.things.clear();
+				this.same = new Equivalences();
+				this.sameCache.clear();
+				this.aboutCache.clear();
+				if (!this.scanStore()) throw new IOException("Unable to index " + directory);
+			} else {
+				TextIndex saved = TextIndex.read(this.textFile(), count);
+				if (saved != null) this.text = saved;
+			}
+			this.committed = count;
+			opened = true;
+		} finally {
+			if (!opened) this.abandon();
+		}
+	}
+
+	/// closes whatever a failed constructor had opened, leaving its exception to be reported
+	private void abandon() {
+		try {
+			store.close();
+		} catch (IOException ex) {}
+		if (ids == null) return;
+		try {
+			ids.close();
+		} catch (IOException ex) {}
+	}
+
+	/// where a disk-backed database keeps its text index
+	private File textFile() {
+		return new File(store.getDirectory(), "text.idx");
+	}
+
+	/// rebuilds ids, positions, and incoming from the store; false if the persisted UUID index is stale
+	private boolean scanStore() throws IOException {
+		final boolean[] stale = { false };
+		final IOException[] problem = { null };
+		store.scan(new NodeStore.Visitor() {
+			public void visit(long position, UUID uuid, String className, UUID[] references) {
+				if (stale[0] || problem[0] != null) return;
+				long have = ids.get(uuid);
+				if (have < 0) ids.put(uuid, count);
+				else if (have != count) stale[0] = true;
+				int id = count;
+				grow(id + 1);
+				positions[id] = position;
+				int[] refs = new int[references.length];
+				int found = 0;
+				for (int i = 0; i < refs.length; i += 1) {
+					int ref = (int) ids.get(references[i]);
+					if (ref >= 0 && ref < id) refs[found++] = ref; // a Verifier reports the rest
+				}
+				Class<?> type = nodeClass(className);
+				if (type == null) problem[0] = new IOException("Stored node " + uuid + " has unknown class " + className);
+				if (problem[0] == null) record(id, uuid, Arrays.copyOf(refs, found), type);
+			}
+		});
+		if (problem[0] != null && !stale[0]) throw problem[0];
+		return !stale[0];
+	}
+
+	/**
+	 * Generated when a disk-backed database cannot read or write its store.
+	 */
+	// @formatter:off
+	public static class StorageException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public StorageException() { super(); }
+		public StorageException(String message) { super(message); }
+		public StorageException(String message, Throwable causedBy) { super(message, causedBy); }
+		public StorageException(Throwable causedBy) { super(causedBy); }
+	}
+	// @formatter:on
+
+	/**
+	 * How much a Database checks the "!uuid" of a node without identity when
+	 * it parses that node from JSON.
+	 */
+	public static enum Verification {
+		/** Re-hash every node and reject any whose UUID does not match. */
+		FULL,
+		/**
+		 * Re-hash one node in every {@value Database#SAMPLE_INTERVAL} and trust
+		 * the rest, so systematic corruption is still likely to be noticed.
+		 */
+		SAMPLED,
+		/** Trust every UUID; check them later with a {@link Verifier}. */
+		DEFERRED
+	}
+
+	/** Under {@link Verification#SAMPLED}, one node in this many is checked. */
+	public static final int SAMPLE_INTERVAL = 64;
+
+	/**
+	 * Sets how nodes parsed from JSON from now on, including nodes read back
+	 * from a disk-backed database's store, are checked against their "!uuid"
+	 * fields. Nodes whose UUIDs are trusted are remembered (until checked) and
+	 * listed by {@link #unverified()}; nodes read back from the store are not,
+	 * since they were checked when first added, except those a
+	 * {@link Verifier} read unchecked to resolve the references of a node it
+	 * was checking.
+	 * <p>
+	 * Trust only data this system wrote itself, such as its own snapshots:
+	 * a trusted node whose contents do not match its UUID is stored as-is.
+	 * 
+	 * @param verification
+	 *            The new verification mode; the default is
+	 *            {@link Verification#FULL}.
+	 */
+	public void setVerification(Verification verification) {
+		if (verification == null) throw new NullPointerException("verification == null");
+		this.verification = verification;
+	}
+
+	/**
+	 * @return How nodes parsed from JSON are currently checked.
+	 */
+	public Verification getVerification() {
+		return this.verification;
+	}
+
+	/// true if the verification mode says not to check sm's "!uuid"; chooses the sample under SAMPLED
+	boolean trusts(SortedMap<String, Object> sm) {
+		if (verification == Verification.FULL || !sm.containsKey("!uuid")) return false;
+		if (verification == Verification.DEFERRED) return true;
+		return parsed.getAndIncrement() % SAMPLE_INTERVAL != 0;
+	}
+
+	/// records that id was added without its UUID being checked
+	void trusted(int id) {
+		if (this.materialize(id).hasIdentity()) return;
+		synchronized (unverified) {
+			unverified.set(id);
+		}
+	}
+
+	/**
+	 * The ids of the nodes whose UUIDs were trusted rather than checked when
+	 * they were added (see {@link #setVerification(Verification)}), and that
+	 * have not been checked by {@link #verify(int, StringBuilder)} or a
+	 * {@link Verifier} since.
+	 * 
+	 * @return The ids of the unverified nodes, in increasing order.
+	 */
+	public int[] unverified() {
+		synchronized (unverified) {
+			int[] ans = new int[unverified.cardinality()];
+			for (int i = 0, id = unverified.nextSetBit(0); id >= 0; i += 1, id = unverified.nextSetBit(id + 1))
+				ans[i] = id;
+			return ans;
+		}
+	}
+
+	/**
+	 * Fully validates a node, including re-hashing it to check its UUID. A
+	 * node that passes is no longer listed by {@link #unverified()}.
+	 * <p>
+	 * This may be called by several threads at once (e.g., to check the
+	 * {@link #unverified()} nodes in parallel after a fast load), provided no
+	 * nodes are being added meanwhile.
+	 * 
+	 * @param id
+	 *            A node id
+	 * @param log
+	 *            Where to describe any problem found; may be null.
+	 * @return {@literal true} if the node is valid.
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public boolean verify(int id, StringBuilder log) {
+		if (!this.lookup(id).validate(log == null ? new StringBuilder() : log)) return false;
+		this.verified(id);
+		return true;
+	}
+
+	/// records that id's UUID has been checked
+	void verified(int id) {
+		synchronized (unverified) {
+			unverified.clear(id);
+		}
+	}
+
+	/// records that n, node id read by lookupUnchecked, has been checked, and caches it so that it need not be read again
+	void verified(int id, Node n) {
+		this.verified(id);
+		if (store == null) return;
+		lock.readLock().lock();
+		try {
+			cached.set(id, new Cached(id, n, reclaimed));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
 
 	/**
-	 * The number of nodes in the database.
+	 * The number of nodes in the database. The nodes of a batch still being
+	 * added are only counted once the whole batch is in, except by the thread
+	 * adding them.
 	 * 
 	 * @return The number of nodes in the database.
 	 */
 	public int size() {
-		return all.size();
+		return lock.isWriteLockedByCurrentThread() ? count : committed;
 	}
 
 	/**
-	 * All of the nodes in this database in some arbitrary order.
+	 * Checks if a node is in this database without loading it from disk.
+	 * 
+	 * @param u
+	 *            The UUID of the node in question
+	 * @return {@literal true} if a node with that UUID has been added.
+	 */
+	public boolean contains(UUID u) {
+		lock.readLock().lock();
+		try {
+			return ids.get(u) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the nodes in this database in id order. Nodes of a disk-backed
+	 * database are loaded as the collection is iterated.
 	 * 
 	 * @return A collection of nodes in the database.
 	 */
 	public Collection<Node> asCollection() {
-		return all.values();
+		return new AbstractCollection<Node>() {
+			public Iterator<Node> iterator() {
+				return Database.this.iterator();
+			}
+
+			public int size() {
+				return Database.this.size();
+			}
+		};
+	}
+
+	/**
+	 * All of the nodes in this database that are not notes (see
+	 * {@link Node#isNote()}), in id order. Which nodes are notes is tracked as
+	 * nodes are added, so notes are skipped without being loaded and without
+	 * walking the nodes they depend on. Nodes of a disk-backed database are
+	 * loaded as the collection is iterated.
+	 * 
+	 * @return A collection of the conclusion (non-note) nodes in the database.
+	 */
+	public Collection<Node> conclusions() {
+		return new AbstractCollection<Node>() {
+			public Iterator<Node> iterator() {
+				return new Iterator<Node>() {
+					private int next = nextConclusion(0);
+
+					public boolean hasNext() {
+						return next < Database.this.size();
+					}
+
+					public Node next() {
+						if (next >= Database.this.size()) throw new NoSuchElementException();
+						Node ans = lookup(next);
+						next = nextConclusion(next + 1);
+						return ans;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException("Nodes cannot be removed from a Database");
+					}
+				};
+			}
+
+			public int size() {
+				lock.readLock().lock();
+				try {
+					return count - noteCount;
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+		};
+	}
+
+	/// the first id at or after from that is not a note
+	private int nextConclusion(int from) {
+		lock.readLock().lock();
+		try {
+			return notes.nextClearBit(from);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
 	 * All of the nodes in this database in an order such that all any node
 	 * referenced by node <var>X</var> appears in the list before <var>X</var>
 	 * itself appears. The result is guaranteed not to contain duplicates.
+	 * <p>
+	 * Since ids are assigned so that every node follows the nodes it
+	 * references, this is simply a view of the nodes in id order. Creating it
+	 * costs O(1); nodes of a disk-backed database are loaded only as they are
+	 * read from the list and may be reclaimed once passed, so iterating over
+	 * it streams the whole database without holding it all in memory.
 	 * 
 	 * @return A list of nodes in the database in an order that can be directly
 	 *         serialised.
 	 */
 	public List<Node> asSerializableCollection() {
-		List<Node> ans = new LinkedList<Node>();
-		for (Node n : all.values()) {
-			if (ans.contains(n)) continue;
-			Collection<Node> before = n.dependsOn();
-			for (Node n2 : before) {
-				if (ans.contains(n2)) continue;
-				ans.add(n2);
-			}
-			ans.add(n);
+		return new SerializableView();
+	}
+
+	private class SerializableView extends AbstractList<Node> implements RandomAccess {
+		public Node get(int index) {
+			return Database.this.lookup(index);
+		}
+
+		public int size() {
+			return Database.this.size();
+		}
+
+		public Iterator<Node> iterator() {
+			return Database.this.iterator();
 		}
-		return ans;
 	}
 
+	/**
+	 * Iterates over the nodes in id order, which is also an order in which
+	 * they can be serialised (see {@link #asSerializableCollection()}).
+	 */
 	public Iterator<Node> iterator() {
-		return all.values().iterator();
+		return new Iterator<Node>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < Database.this.size();
+			}
+
+			public Node next() {
+				if (next >= Database.this.size()) throw new NoSuchElementException();
+				return lookup(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Nodes cannot be removed from a Database");
+			}
+		};
+	}
+
+	/**
+	 * Something that wants to know about nodes as they are added to a
+	 * Database, e.g. to keep derived data up to date.
+	 */
+	public static interface Listener {
+		/**
+		 * Called once for each node added to the database, in id order, after
+		 * the call that added it (and every node added with it) has finished.
+		 * A listener may add nodes itself; they are announced once this call
+		 * returns, after any nodes already waiting to be.
+		 * 
+		 * @param db
+		 *            The database the node was added to
+		 * @param id
+		 *            The id of the new node
+		 */
+		void added(Database db, int id);
+	}
+
+	/**
+	 * Registers a listener to be told about every node added from now on.
+	 * 
+	 * @param l
+	 *            The listener
+	 */
+	public void addListener(Listener l) {
+		if (l == null) throw new NullPointerException("listener == null");
+		this.lockWrites();
+		try {
+			if (listeners.isEmpty()) announced = count;
+			listeners.add(l);
+		} finally {
+			this.unlockWrites();
+		}
+	}
+
+	/**
+	 * Stops telling a listener about new nodes.
+	 * 
+	 * @param l
+	 *            A listener given to {@link #addListener(Listener)}
+	 */
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/// takes the write lock, which each call that adds nodes holds for the whole of its batch
+	void lockWrites() {
+		lock.writeLock().lock();
+	}
+
+	/// releases the write lock; on releasing the outermost hold, lets size() and the views see the nodes added under it
+	void unlockWrites() {
+		if (lock.getWriteHoldCount() == 1) committed = count;
+		lock.writeLock().unlock();
+	}
+
+	/// tells the listeners about every node added since they were last told, in id order; not re-entrant
+	void announce() {
+		this.lockWrites();
+		try {
+			if (announcing) return; // the loop below will get to the new nodes
+			if (listeners.isEmpty()) {
+				announced = count;
+				return;
+			}
+			announcing = true;
+			try {
+				while (announced < count) {
+					int id = announced++;
+					for (Listener l : listeners)
+						l.added(this, id);
+				}
+			} finally {
+				announcing = false;
+			}
+		} finally {
+			this.unlockWrites();
+		}
 	}
 
 	/**
 	 * This method is more efficient than lookup, but it performs no error
 	 * checking and may result in undefined behaviour if the provided nodes
 	 * contains references to nodes that have not been added to this Database.
+	 * <p>
+	 * Nodes in {@code nodes} may refer to one another in any order; they are
+	 * recorded so that every node follows the nodes it references.
 	 * 
 	 * @param nodes
 	 *            Node(s) to add to the database.
+	 * @throws UnsupportedOperationException
+	 *             if a node refers to a node that is neither in the database
+	 *             nor in {@code nodes}.
+	 * @throws StorageException
+	 *             if a disk-backed database cannot write the nodes
 	 */
 	public void add(Node... nodes) {
-		for (Node n : nodes) {
-			if (!all.containsKey(n.getUUID())) all.put(n.getUUID(), n);
+		this.lockWrites();
+		try {
+			Map<UUID, Node> batch = new TreeMap<UUID, Node>();
+			for (Node n : nodes)
+				batch.put(n.getUUID(), n);
+			try {
+				for (Node n : nodes)
+					this.insert(n, batch, false);
+			} finally {
+				this.announce(); // whatever was added before a failure
+			}
+		} finally {
+			this.unlockWrites();
+		}
+	}
+
+	/// adds n after (if closure, or if in batch) the nodes it references; returns n's id
+	private int insert(Node n, Map<UUID, Node> batch, boolean closure) {
+		UUID u = n.getUUID();
+		long have = ids.get(u);
+		if (have >= 0) return (int) have;
+		int[] refs = new int[n.outDegree()];
+		for (int i = 0; i < refs.length; i += 1) {
+			Node n2 = n.out(i);
+			long id2 = ids.get(n2.getUUID());
+			if (id2 < 0) {
+				Node pending = batch == null ? null : batch.get(n2.getUUID());
+				if (pending != null) id2 = this.insert(pending, batch, closure);
+				else if (closure) id2 = this.insert(n2, batch, closure);
+				else throw new UnsupportedOperationException("Cannot add a node that refers to nodes you haven't added");
+			}
+			refs[i] = (int) id2;
+		}
+		int id = count;
+		this.grow(id + 1);
+		if (store != null) {
+			try {
+				positions[id] = store.append(n);
+			} catch (IOException ex) {
+				throw new StorageException("Unable to store node " + u, ex);
+			}
+		}
+		ids.put(u, id);
+		if (store == null) nodes[id] = n;
+		else this.cache(id, n, null);
+		this.record(id, u, refs, n.getClass());
+		if (fieldsIndexed == id) this.indexFields(id, n);
+		if (text.upTo() == id) this.indexText(id, n);
+		return id;
+	}
+
+	private void grow(int capacity) {
+		if (2 * capacity <= uuids.length) return;
+		int size = Math.max(capacity, uuids.length);
+		uuids = Arrays.copyOf(uuids, 2 * size);
+		outStart = Arrays.copyOf(outStart, size + 1);
+		if (nodes != null) nodes = Arrays.copyOf(nodes, size);
+		if (positions != null) positions = Arrays.copyOf(positions, size);
+		if (cached != null) {
+			AtomicReferenceArray<Cached> was = cached;
+			cached = new AtomicReferenceArray<Cached>(size);
+			for (int i = 0; i < was.length(); i += 1)
+				cached.set(i, was.get(i));
+		}
+	}
+
+	/// records the UUID, edges and note-ness of id, which must be the next id; repeated references count once
+	private void record(int id, UUID u, int[] refs, Class<?> type) {
+		boolean isNote = type.equals(Note.class);
+		boolean isMatch = Match.class.isAssignableFrom(type);
+		uuids[2 * id] = u.getMostSignificantBits();
+		uuids[2 * id + 1] = u.getLeastSignificantBits();
+		Arrays.sort(refs);
+		int start = outStart[id];
+		if (outIds.length < start + refs.length) outIds = Arrays.copyOf(outIds, Math.max(start + refs.length, outIds.length * 2));
+		int end = start;
+		for (int i = 0; i < refs.length; i += 1) {
+			if (i > 0 && refs[i] == refs[i - 1]) continue;
+			outIds[end++] = refs[i];
+			incoming.add(id, refs[i]);
+			if (notes.get(refs[i])) isNote = true;
+			if (things.get(refs[i])) {
+				int root = same.find(refs[i]);
+				aboutCache.remove(root); // id is a new claim about refs[i]
+				if (isMatch && same.union(id, refs[i])) {
+					sameCache.remove(root);
+					aboutCache.remove(same.find(id));
+					sameCache.remove(same.find(id));
+				}
+			}
+		}
+		if (Thing.class.isAssignableFrom(type)) things.set(id);
+		if (isNote) {
+			notes.set(id);
+			noteCount += 1;
+		}
+		IdList list = byClass.get(type);
+		if (list == null) byClass.put(type, list = new IdList());
+		list.add(id);
+		outStart[id + 1] = end;
+		count = id + 1;
+	}
+
+	/// the node class with a given simple name (as in a store record or "!class"), or null if there is none
+	static Class<?> nodeClass(String className) {
+		try {
+			Class<?> c = Class.forName(Note.class.getPackage().getName() + "." + className);
+			return Node.class.isAssignableFrom(c) ? c : null;
+		} catch (ClassNotFoundException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * The number of nodes in this database that are instances of a given
+	 * class. Costs O(1) for each concrete node class.
+	 * 
+	 * @param type
+	 *            A node class, e.g. Connection.class; may be abstract, e.g.
+	 *            Claim.class.
+	 * @return The number of nodes of that type, including subclasses (so
+	 *         Matches are counted as Things).
+	 */
+	public int count(Class<? extends Node> type) {
+		lock.readLock().lock();
+		try {
+			int ans = 0;
+			for (Map.Entry<Class<?>, IdList> e : byClass.entrySet())
+				if (type.isAssignableFrom(e.getKey())) ans += e.getValue().size;
+			return ans;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The ids of the nodes in this database that are instances of a given
+	 * class, without looking at any other node.
+	 * 
+	 * @param type
+	 *            A node class, e.g. Connection.class; may be abstract, e.g.
+	 *            Claim.class.
+	 * @return The ids of the nodes of that type, including subclasses, in
+	 *         increasing order.
+	 */
+	public int[] idsOf(Class<? extends Node> type) {
+		lock.readLock().lock();
+		try {
+			int[] ans = new int[this.count(type)];
+			int n = 0;
+			for (IdCursor c = new IdCursor(type); c.hasNext();)
+				ans[n++] = c.next();
+			return ans;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the nodes in this database that are instances of a given class,
+	 * in id order. This reads only those nodes, rather than scanning the whole
+	 * database and checking each node's class; nodes of a disk-backed
+	 * database are loaded as the collection is iterated.
+	 * 
+	 * @param type
+	 *            A node class, e.g. Connection.class; may be abstract, e.g.
+	 *            Claim.class.
+	 * @return A collection of the nodes of that type, including subclasses.
+	 */
+	public <T extends Node> Collection<T> ofClass(final Class<T> type) {
+		return new AbstractCollection<T>() {
+			public Iterator<T> iterator() {
+				final int[] ids = idsOf(type);
+				return new Iterator<T>() {
+					private int next = 0;
+
+					public boolean hasNext() {
+						return next < ids.length;
+					}
+
+					public T next() {
+						if (next >= ids.length) throw new NoSuchElementException();
+						return type.cast(lookup(ids[next++]));
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException("Nodes cannot be removed from a Database");
+					}
+				};
+			}
+
+			public int size() {
+				return Database.this.count(type);
+			}
+		};
+	}
+
+	/// the ids of the nodes of one concrete class, in increasing order
+	private static class IdList {
+		int[] ids = new int[16];
+		int size;
+
+		void add(int id) {
+			if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+	}
+
+	/// merges the IdLists of every concrete class assignable to any of some types into one increasing sequence
+	private class IdCursor {
+		private final IdList[] lists;
+		private final int[] at;
+
+		IdCursor(Class<?>... types) {
+			List<IdList> matching = new ArrayList<IdList>();
+			for (Map.Entry<Class<?>, IdList> e : byClass.entrySet())
+				for (Class<?> type : types)
+					if (type.isAssignableFrom(e.getKey())) {
+						matching.add(e.getValue());
+						break;
+					}
+			this.lists = matching.toArray(new IdList[matching.size()]);
+			this.at = new int[lists.length];
+		}
+
+		boolean hasNext() {
+			for (int i = 0; i < lists.length; i += 1)
+				if (at[i] < lists[i].size) return true;
+			return false;
+		}
+
+		int next() {
+			int best = -1;
+			for (int i = 0; i < lists.length; i += 1)
+				if (at[i] < lists[i].size && (best < 0 || lists[i].ids[at[i]] < lists[best].ids[at[best]])) best = i;
+			if (best < 0) throw new NoSuchElementException();
+			return lists[best].ids[at[best]++];
+		}
+	}
+
+	/// adds the searchable string fields of node id, which must be the next one to index
+	private void indexFields(int id, Node n) {
+		if (n instanceof Property) {
+			Property p = (Property) n;
+			if (p.key != null && p.value != null) {
+				StringIndex values = propertyValues.get(p.key);
+				if (values == null) propertyValues.put(p.key, values = new StringIndex());
+				values.add(p.value, id);
+			}
+		} else if (n instanceof Connection) {
+			if (((Connection) n).relation != null) relations.add(((Connection) n).relation, id);
+		} else if (n instanceof Grouping) {
+			if (((Grouping) n).relation != null) relations.add(((Grouping) n).relation, id);
+		}
+		fieldsIndexed = id + 1;
+	}
+
+	/// brings the string indexes up to date; only needed for nodes read back from a store
+	private void indexFields() {
+		if (fieldsIndexed == count) return;
+		synchronized (this) { // readers may get here together
+			if (fieldsIndexed == count) return;
+			int from = fieldsIndexed;
+			for (IdCursor c = new IdCursor(Property.class, Connection.class, Grouping.class); c.hasNext();) {
+				int id = c.next();
+				if (id >= from) this.indexFields(id, this.materialize(id));
+			}
+			fieldsIndexed = count;
+		}
+	}
+
+	/**
+	 * All of the Property nodes with a given key, in id order. Like the other
+	 * searches below, this uses an index kept up to date as nodes are added
+	 * rather than scanning the database. (A reopened disk-backed database
+	 * builds its indexes by reading its Property, Connection and Grouping
+	 * nodes the first time it is searched.)
+	 * 
+	 * @param key
+	 *            The key to look for
+	 * @return The Property nodes with that key.
+	 */
+	public Collection<Property> properties(String key) {
+		return this.propertiesInRange(key, null, null);
+	}
+
+	/**
+	 * All of the Property nodes with a given value, in id order.
+	 * 
+	 * @param key
+	 *            The key the Property must have, or null for any key
+	 * @param value
+	 *            The value to look for
+	 * @return The Property nodes with that key and value.
+	 */
+	public Collection<Property> properties(String key, String value) {
+		return this.withIds(this.propertyIds(key, value), Property.class);
+	}
+
+	/// the ids behind properties(key, value)
+	int[] propertyIds(String key, String value) {
+		lock.readLock().lock();
+		try {
+			this.indexFields();
+			int[] ids;
+			if (key != null) {
+				StringIndex values = propertyValues.get(key);
+				ids = values == null ? new int[0] : values.exact(value);
+			} else {
+				ids = new int[0];
+				for (StringIndex values : propertyValues.values())
+					ids = merge(ids, values.exact(value));
+			}
+			return ids;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the Property nodes whose values start with a given prefix, in id
+	 * order. For example, {@code propertiesWithPrefix("birth", "1850")}.
+	 * 
+	 * @param key
+	 *            The key the Property must have, or null for any key
+	 * @param prefix
+	 *            The start of the values to look for
+	 * @return The Property nodes with that key and a value starting with
+	 *         prefix.
+	 */
+	public Collection<Property> propertiesWithPrefix(String key, String prefix) {
+		lock.readLock().lock();
+		try {
+			this.indexFields();
+			int[] ids;
+			if (key != null) {
+				StringIndex values = propertyValues.get(key);
+				ids = values == null ? new int[0] : values.prefix(prefix);
+			} else {
+				ids = new int[0];
+				for (StringIndex values : propertyValues.values())
+					ids = merge(ids, values.prefix(prefix));
+			}
+			return this.withIds(ids, Property.class);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the Property nodes whose values lie in a range, in id order.
+	 * Values are compared as Strings.
+	 * 
+	 * @param key
+	 *            The key the Property must have, or null for any key
+	 * @param from
+	 *            The smallest value to include, or null for no lower bound
+	 * @param to
+	 *            The value to stop before, or null for no upper bound
+	 * @return The Property nodes with that key and a value v where from &le; v
+	 *         &lt; to.
+	 */
+	public Collection<Property> propertiesInRange(String key, String from, String to) {
+		return this.withIds(this.propertyIdsInRange(key, from, to), Property.class);
+	}
+
+	/// the ids behind propertiesInRange(key, from, to)
+	int[] propertyIdsInRange(String key, String from, String to) {
+		lock.readLock().lock();
+		try {
+			this.indexFields();
+			int[] ids;
+			if (key != null) {
+				StringIndex values = propertyValues.get(key);
+				ids = values == null ? new int[0] : values.range(from, to);
+			} else {
+				ids = new int[0];
+				for (StringIndex values : propertyValues.values())
+					ids = merge(ids, values.range(from, to));
+			}
+			return ids;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the Connection and Grouping nodes with a given relation, in id
+	 * order.
+	 * 
+	 * @param relation
+	 *            The relation to look for
+	 * @return The Connection and Grouping nodes with that relation.
+	 */
+	public Collection<Claim> related(String relation) {
+		return this.withIds(this.relatedIds(relation), Claim.class);
+	}
+
+	/// the ids behind related(relation)
+	int[] relatedIds(String relation) {
+		lock.readLock().lock();
+		try {
+			this.indexFields();
+			return relations.exact(relation);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the Connection and Grouping nodes whose relations start with a
+	 * given prefix, in id order.
+	 * 
+	 * @param prefix
+	 *            The start of the relations to look for
+	 * @return The Connection and Grouping nodes with a relation starting with
+	 *         prefix.
+	 */
+	public Collection<Claim> relatedWithPrefix(String prefix) {
+		lock.readLock().lock();
+		try {
+			this.indexFields();
+			return this.withIds(relations.prefix(prefix), Claim.class);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All of the Connection and Grouping nodes whose relations lie in a range,
+	 * in id order.
+	 * 
+	 * @param from
+	 *            The smallest relation to include, or null for no lower bound
+	 * @param to
+	 *            The relation to stop before, or null for no upper bound
+	 * @return The Connection and Grouping nodes with a relation r where from
+	 *         &le; r &lt; to.
+	 */
+	public Collection<Claim> relatedInRange(String from, String to) {
+		lock.readLock().lock();
+		try {
+			this.indexFields();
+			return this.withIds(relations.range(from, to), Claim.class);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/// adds the words of node id, which must be the next one to index, to the text index
+	private void indexText(int id, Node n) {
+		List<String> texts = new ArrayList<String>(2);
+		if (n instanceof ExternalSource) {
+			ExternalSource es = (ExternalSource) n;
+			if (es.contentType == null || es.contentType.startsWith("text/")) texts.add(es.content);
+		} else if (n instanceof Citation) {
+			for (Object value : ((Citation) n).details.values())
+				if (value != null) texts.add(value.toString());
+		}
+		if (texts.isEmpty()) text.skipTo(id + 1);
+		else text.add(id, texts);
+	}
+
+	/// brings the text index up to date; only needed for nodes read back from a store
+	private synchronized void indexText() { // readers may get here together
+		if (text.upTo() == count) return;
+		int from = text.upTo();
+		for (IdCursor c = new IdCursor(ExternalSource.class, Citation.class); c.hasNext();) {
+			int id = c.next();
+			if (id >= from) this.indexText(id, this.materialize(id));
+		}
+		text.skipTo(count);
+	}
+
+	/**
+	 * Searches the text of the database's sources: the contents of every
+	 * ExternalSource with a textual content type, and the details of every
+	 * Citation. The query is a list of words, all of which must appear:
+	 * {@code "john smith" born 185*} finds text with "John" followed by
+	 * "Smith", the word "born", and a word starting with "185". Case and
+	 * punctuation are ignored.
+	 * <p>
+	 * Results are ranked by how well they match: rarer words count for more
+	 * than common ones, and a match in a short text for more than one in a
+	 * long text. The search uses an inverted index kept up to date as nodes
+	 * are added, which a disk-backed database saves beside its store when it
+	 * is flushed or closed.
+	 * 
+	 * @param query
+	 *            The words, "quoted phrases" and prefix* words to look for
+	 * @param limit
+	 *            The most results to return
+	 * @return The UUIDs of the matching ExternalSource and Citation nodes,
+	 *         best match first.
+	 */
+	public List<UUID> search(String query, int limit) {
+		lock.readLock().lock();
+		try {
+			this.indexText();
+			int[] found = text.search(query, limit);
+			List<UUID> ans = new ArrayList<UUID>(found.length);
+			for (int id : found)
+				ans.add(this.uuidOf(id));
+			return ans;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/// merges two increasing arrays of ids
+	private static int[] merge(int[] a, int[] b) {
+		if (a.length == 0) return b;
+		if (b.length == 0) return a;
+		int[] ans = new int[a.length + b.length];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length)
+			ans[k++] = a[i] < b[j] ? a[i++] : b[j++];
+		while (i < a.length)
+			ans[k++] = a[i++];
+		while (j < b.length)
+			ans[k++] = b[j++];
+		return ans;
+	}
+
+	/// a view of the nodes with the given ids, loaded as they are read
+	private <T extends Node> Collection<T> withIds(final int[] ids, final Class<T> type) {
+		return new AbstractList<T>() {
+			public T get(int index) {
+				return type.cast(lookup(ids[index]));
+			}
+
+			public int size() {
+				return ids.length;
+			}
+		};
+	}
+
+	/**
+	 * The id this database gave a node.
+	 * 
+	 * @param u
+	 *            The UUID of the node in question
+	 * @return The node's id, or -1 if it is not in this database.
+	 */
+	public int idOf(UUID u) {
+		lock.readLock().lock();
+		try {
+			return (int) ids.get(u);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The id this database gave a node.
+	 * 
+	 * @param n
+	 *            The node in question
+	 * @return The node's id, or -1 if it is not in this database.
+	 */
+	public int idOf(Node n) {
+		return this.idOf(n.getUUID());
+	}
+
+	/**
+	 * The UUID of the node with a given id, found without loading the node.
+	 * 
+	 * @param id
+	 *            A node id
+	 * @return The UUID of node {@code id}
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public UUID uuidOf(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			return new UUID(uuids[2 * id], uuids[2 * id + 1]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The node with a given id, loaded from disk if needed.
+	 * 
+	 * @param id
+	 *            A node id
+	 * @return The node with that id
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public Node lookup(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			return this.materialize(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether a node is a note (see {@link Node#isNote()}) without
+	 * loading it or anything it depends on from disk. The answer is recorded
+	 * when the node is added, so this costs O(1).
+	 * 
+	 * @param id
+	 *            A node id
+	 * @return {@literal true} if the node is a Note or depends on one.
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public boolean isNote(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			return notes.get(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The ids of the nodes that a node references directly, in increasing
+	 * order and without repeats. Does not load any node from disk.
+	 * 
+	 * @param id
+	 *            A node id
+	 * @return The ids of the nodes that node {@code id} references
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public int[] out(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			return Arrays.copyOfRange(outIds, outStart[id], outStart[id + 1]);
+		} finally {
+			lock.readLock().unlock();
 		}
-		for (Node n : nodes) {
-			n = all.get(n.getUUID());
-			for (Node n2 : n.out()) {
-				if (!all.containsKey(n2.getUUID())) throw new UnsupportedOperationException("Cannot add a node that refers to nodes you haven't added");
-				if (!incoming.containsKey(n2)) incoming.put(n2, new TreeSet<Node>());
-				incoming.get(n2).add(n);
+	}
+
+	/**
+	 * The ids of the nodes that reference a node directly. Unlike
+	 * {@link #in(Node)}, this does not treat Match nodes specially. Does not
+	 * load any node from disk.
+	 * 
+	 * @param id
+	 *            A node id
+	 * @return The ids of the nodes that reference node {@code id}
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public int[] in(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			int[] ans = new int[incoming.degree(id)];
+			EdgeIndex.Cursor c = incoming.sources(id);
+			for (int i = 0; i < ans.length; i += 1)
+				ans[i] = c.next();
+			return ans;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/// how many nodes reference node id directly; the length of in(id), without copying it
+	int inDegree(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			return incoming.degree(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/// finds a node already in the database, reading it from disk if needed
+	private Node materialize(UUID u) {
+		long id = ids.get(u);
+		return id < 0 ? null : this.materialize((int) id);
+	}
+
+	private Node materialize(int id) {
+		if (store == null) return nodes[id];
+		Cached c = cached.get(id);
+		Node n = c == null ? null : c.get();
+		if (n != null) return n;
+		n = this.parse(id, verification != Verification.FULL, this); // unlocked, so readers that miss parse in parallel
+		return this.cache(id, n, c);
+	}
+
+	/// reads node id from the store and parses it, checking its "!uuid" unless trust and finding what it refers to in refs
+	private Node parse(int id, boolean trust, NodeLookup refs) {
+		try {
+			Object json = JSONParser.parse(store.readJSON(positions[id]));
+			if (!(json instanceof SortedMap<?, ?>)) throw new StorageException("Record " + id + " is not a JSON object");
+			@SuppressWarnings("unchecked")
+			SortedMap<String, Object> sm = (SortedMap<String, Object>) json;
+			return Node.fromJSON(sm, refs, trust);
+		} catch (IOException ex) {
+			throw new StorageException("Unable to read node " + id, ex);
+		}
+	}
+
+	/// node id without checking its "!uuid": read afresh from a store, bypassing the cache, so a Verifier can hash it once in its own thread
+	Node lookupUnchecked(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			return store == null ? nodes[id] : this.parse(id, true, uncheckedRefs);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/// finds the nodes referenced by a node lookupUnchecked reads, without hashing them either
+	private final NodeLookup uncheckedRefs = new NodeLookup() {
+		public Node lookup(Object o) {
+			if (!(o instanceof UUID || o instanceof String)) return Database.this.lookup(o);
+			UUID u = o instanceof UUID ? (UUID) o : UUID.fromString((String) o);
+			long id = ids.get(u);
+			if (id < 0) throw new IllegalArgumentException("Node " + u + " is not in this database");
+			return Database.this.materializeUnchecked((int) id);
+		}
+	};
+
+	/// as materialize, but a node not yet cached is parsed without hashing it, and until checked is listed as unverified if it would have been hashed
+	private Node materializeUnchecked(int id) {
+		Cached c = cached.get(id);
+		Node n = c == null ? null : c.get();
+		if (n != null) return n;
+		n = this.cache(id, this.parse(id, true, uncheckedRefs), c);
+		if (verification == Verification.FULL && !n.hasIdentity()) {
+			synchronized (unverified) {
+				unverified.set(id);
+			}
+		}
+		return n;
+	}
+
+	/// the UUIDs of the nodes node id refers to, as recorded in its store header, so they can be checked without parsing it; null if there is no store
+	UUID[] storedReferences(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			if (store == null) return null;
+			return store.readReferences(positions[id]);
+		} catch (IOException ex) {
+			throw new StorageException("Unable to read node " + id, ex);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/// a node of a disk-backed database, held only until the garbage collector needs the memory; it can always be read again
+	private static final class Cached extends SoftReference<Node> {
+		final int id;
+
+		Cached(int id, Node n, ReferenceQueue<Node> q) {
+			super(n, q);
+			this.id = id;
+		}
+	}
+
+	/// remembers n as the node with a given id unless another thread that also read it got there first, and returns the node remembered; old is the entry that was missed
+	private Node cache(int id, Node n, Cached old) {
+		for (Cached c = (Cached) reclaimed.poll(); c != null; c = (Cached) reclaimed.poll())
+			cached.compareAndSet(c.id, c, null);
+		Cached mine = new Cached(id, n, reclaimed);
+		while (!cached.compareAndSet(id, old, mine)) {
+			old = cached.get(id);
+			Node had = old == null ? null : old.get();
+			if (had != null) return had; // nodes are immutable, so either copy will do
+		}
+		return n;
+	}
+
+	/// brings the lazily-built indexes up to date and flushes the store, so that readers that follow need not
+	void prepareForReaders() {
+		this.lockWrites();
+		try {
+			this.indexFields();
+			if (store == null) return;
+			try {
+				store.flush();
+			} catch (IOException ex) {
+				throw new StorageException("Unable to flush the store", ex);
 			}
+		} finally {
+			this.unlockWrites();
 		}
 	}
 
@@ -107,18 +1411,25 @@ public class Database implements NodeLookup, Iterable<Node> {
 		if (o == null) return null;
 		if (o instanceof Node) {
 			Node n = (Node) o;
-			if (!all.containsKey(n.getUUID())) this.addJSON(n.toSerializeWithDependencies(true));
-			n = this.all.get(n.getUUID());
-			for (Node n2 : n.out()) {
-				assert all.containsKey(n2.getUUID()) : "Somehow addJSON failed to add prerequisite nodes?";
-				if (!incoming.containsKey(n2)) incoming.put(n2, new TreeSet<Node>());
-				incoming.get(n2).add(n);
+			this.lockWrites();
+			try {
+				int id = this.insert(n, null, true);
+				this.announce();
+				return this.materialize(id);
+			} finally {
+				this.unlockWrites();
 			}
-			return n;
 		} else if (o instanceof UUID) {
 			UUID u = (UUID) o;
-			if (!all.containsKey(u)) throw new IllegalArgumentException("Node " + u + " is not in this database");
-			return this.all.get(u);
+			Node n;
+			lock.readLock().lock();
+			try {
+				n = this.materialize(u);
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (n == null) throw new IllegalArgumentException("Node " + u + " is not in this database");
+			return n;
 		} else if (o instanceof String) {
 			String s = (String) o;
 			UUID u = null;
@@ -150,7 +1461,11 @@ public class Database implements NodeLookup, Iterable<Node> {
 	}
 
 	/**
-	 * Returns a collection of the nodes that point to {code n}.
+	 * Returns a collection of the nodes that point to {code n}. Unless
+	 * {@code n} is a Match, the collection is a view backed by the database's
+	 * incoming-edge index. For a Match it is every node that points to any
+	 * Thing the Match is equivalent to (see {@link #claimsAbout(int)}),
+	 * following chains of Matches.
 	 * 
 	 * @param n
 	 *            The node in question
@@ -158,21 +1473,145 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 */
 	public Collection<Node> in(Node n) {
 		if (n instanceof Match) {
-			SortedSet<Node> ans = new TreeSet<Node>();
-			if (incoming.containsKey(n)) ans.addAll(incoming.get(n));
-			for (Thing t : ((Match) n).same)
-				ans.addAll(this.in(t));
-			return ans;
-		} else {
-			if (incoming.containsKey(n)) return incoming.get(n);
-			else {
-				@SuppressWarnings("unchecked")
-				List<Node> ans = (List<Node>) Collections.EMPTY_LIST;
-				return ans;
+			int id = this.idOf(n);
+			if (id >= 0) return this.withIds(this.claimsAbout(id), Node.class);
+		}
+		return this.directlyIn(n);
+	}
+
+	/**
+	 * The ids of every Thing that the Matches in this database say is the same
+	 * as a given Thing, directly or through a chain of Matches. A Match is
+	 * itself a Thing, and is the same as each Thing it matches. The answer is
+	 * kept in an incrementally maintained union-find structure, so checking
+	 * whether two Things are the same costs amortised O(&alpha;(n)); the list
+	 * of members is cached until another Match changes it.
+	 * 
+	 * @param id
+	 *            The id of a node
+	 * @return The ids of the Things equivalent to that node, including itself,
+	 *         in increasing order. Just {@code id} if the node is not a Thing
+	 *         or has not been matched.
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public int[] equivalent(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			int root = same.find(id);
+			int[] ans = sameCache.get(root);
+			if (ans == null) {
+				ans = same.members(id);
+				if (ans.length > 1) sameCache.put(root, ans);
+			}
+			return ans.clone();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Every Thing that the Matches in this database say is the same as a given
+	 * Thing. See {@link #equivalent(int)}.
+	 * 
+	 * @param t
+	 *            A Thing in this database
+	 * @return The equivalent Things, including t, in id order.
+	 */
+	public Collection<Thing> equivalent(Thing t) {
+		int id = this.idOf(t);
+		if (id < 0) return Collections.singletonList(t);
+		return this.withIds(this.equivalent(id), Thing.class);
+	}
+
+	/**
+	 * @param a
+	 *            A Thing in this database
+	 * @param b
+	 *            Another Thing in this database
+	 * @return {@literal true} if Matches in this database say a and b are the
+	 *         same thing, directly or through a chain of Matches.
+	 */
+	public boolean isSame(Thing a, Thing b) {
+		lock.readLock().lock();
+		try {
+			int ia = this.idOf(a), ib = this.idOf(b);
+			if (ia < 0 || ib < 0) return a.equals(b);
+			return same.find(ia) == same.find(ib);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The ids of every node that points to any Thing equivalent to a given
+	 * node (see {@link #equivalent(int)}): the Properties, Connections,
+	 * Groupings and Matches that make claims about the real-world thing it
+	 * refers to. Cached until another such node or Match is added.
+	 * 
+	 * @param id
+	 *            The id of a node
+	 * @return The ids of the nodes referencing it or its equivalents, in
+	 *         increasing order.
+	 * @throws IndexOutOfBoundsException
+	 *             if no node has that id
+	 */
+	public int[] claimsAbout(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No node has id " + id);
+			int root = same.find(id);
+			int[] ans = aboutCache.get(root);
+			if (ans == null) {
+				int[] members = this.equivalent(id);
+				if (members.length == 1) return this.in(id);
+				int n = 0;
+				for (int m : members)
+					n += incoming.degree(m);
+				ans = new int[n];
+				n = 0;
+				for (int m : members)
+					for (EdgeIndex.Cursor c = incoming.sources(m); c.hasNext();)
+						ans[n++] = c.next();
+				Arrays.sort(ans);
+				int k = 0;
+				for (int i = 0; i < n; i += 1)
+					if (k == 0 || ans[i] != ans[k - 1]) ans[k++] = ans[i];
+				ans = Arrays.copyOf(ans, k);
+				aboutCache.put(root, ans);
 			}
+			return ans.clone();
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
+	/**
+	 * Every node that makes a claim about the real-world thing a Thing refers
+	 * to. See {@link #claimsAbout(int)}.
+	 * 
+	 * @param t
+	 *            A Thing in this database
+	 * @return The nodes referencing t or its equivalents, in id order.
+	 */
+	public Collection<Node> claimsAbout(Thing t) {
+		int id = this.idOf(t);
+		if (id < 0) return this.directlyIn(t);
+		return this.withIds(this.claimsAbout(id), Node.class);
+	}
+
+	/// a view of the nodes that point directly to n, read from the incoming index
+	private Collection<Node> directlyIn(Node n) {
+		int id = this.idOf(n);
+		if (id < 0) {
+			@SuppressWarnings("unchecked")
+			List<Node> ans = (List<Node>) Collections.EMPTY_LIST;
+			return ans;
+		}
+		return this.withIds(this.in(id), Node.class);
+	}
+
 	/**
 	 * parses the given JSON and adds all of its nodes to this database
 	 * 
@@ -184,7 +1623,7 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 *             if JSON is not a Node or list of Nodes.
 	 */
 	public void addJSON(String json) {
-		this.addJSON(JSONParser.parse(json));
+		this.addJSON(new StringReader(json));
 	}
 
 	/**
@@ -200,7 +1639,7 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 *             if JSON is not a Node or list of Nodes.
 	 */
 	public void addJSON(File json) throws FileNotFoundException {
-		this.addJSON(JSONParser.parse(json));
+		this.addJSON(new FileReader(json));
 	}
 
 	/**
@@ -217,11 +1656,19 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 *             if JSON is not a Node or list of Nodes.
 	 */
 	public void addJSON(URL json) throws IOException {
-		this.addJSON(JSONParser.parse(json));
+		this.addJSON(json.openStream());
 	}
 
 	/**
 	 * parses the given JSON and adds all of its nodes to this database
+	 * <p>
+	 * A list is read one element at a time with a
+	 * {@link JSONParser.ElementReader}, and its nodes are built without holding
+	 * the write lock and added a batch at a time, so memory use does not grow
+	 * with the size of the input and readers are held up only while each batch
+	 * goes in. Nodes earlier in the list are remembered by id for the sake of
+	 * index references. If the input is malformed partway through, the nodes
+	 * before the problem remain in the database.
 	 * 
 	 * @param json
 	 *            A JSON-encoded character stream containing either a Map or a
@@ -232,7 +1679,9 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 *             if JSON is not a Node or list of Nodes.
 	 */
 	public void addJSON(Reader json) {
-		this.addJSON(JSONParser.parse(json));
+		JSONParser.ElementReader elements = new JSONParser.ElementReader(json);
+		if (elements.isList()) new UseList(this).addAll(elements);
+		else this.addJSON(elements.next());
 	}
 
 	/**
@@ -247,7 +1696,7 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 *             if JSON is not a Node or list of Nodes.
 	 */
 	public void addJSON(InputStream json) {
-		this.addJSON(JSONParser.parse(json));
+		this.addJSON(new InputStreamReader(json));
 	}
 
 	/**
@@ -270,33 +1719,21 @@ public class Database implements NodeLookup, Iterable<Node> {
 				Object uuid = sm.get("!uuid");
 				if (uuid instanceof String) {
 					UUID u = UUID.fromString((String) uuid);
-					if (this.all.containsKey(u)) return;// this.all.get(u);
+					if (this.contains(u)) return;
 				}
 			}
-			Node n = Node.fromJSON(sm, this);
-			this.add(n);
-		} else if (json instanceof SortedSet<?> || json instanceof List<?>) {
-			Collection<?> i = (Collection<?>) json;
-			ArrayList<Node> list = new ArrayList<Node>(i.size());
-			NodeLookup context = new UseList(this, list);
-			for (Object o : i) {
-				if (!(o instanceof SortedMap)) throw new IllegalArgumentException("Expected a JSON object, not a " + o.getClass());
-				@SuppressWarnings("unchecked")
-				SortedMap<String, Object> sm = (SortedMap<String, Object>) o;
-				if (sm.containsKey("!uuid")) {
-					Object uuid = sm.get("!uuid");
-					if (uuid instanceof String) {
-						UUID u = UUID.fromString((String) uuid);
-						if (this.all.containsKey(u)) {
-							list.add(this.all.get(u));
-							continue;
-						}
-					}
-				}
-				Node n = Node.fromJSON(sm, context);
-				this.add(n);
-				list.add(n);
+			boolean trust = this.trusts(sm);
+			Node n = Node.fromJSON(sm, this, trust); // before taking the lock, so readers can carry on meanwhile
+			this.lockWrites();
+			try {
+				int id = this.insert(n, null, false);
+				if (trust) this.trusted(id);
+				this.announce();
+			} finally {
+				this.unlockWrites();
 			}
+		} else if (json instanceof SortedSet<?> || json instanceof List<?>) {
+			new UseList(this).addAll(((Collection<?>) json).iterator());
 		} else {
 			throw new IllegalArgumentException("Expected a parsed JSON object or map, not a " + json.getClass());
 		}
@@ -306,18 +1743,258 @@ public class Database implements NodeLookup, Iterable<Node> {
 	 * All of the nodes in this database serialised using Node.compressedJSON
 	 */
 	public String toString() {
-		Node[] nodes = new Node[this.all.size()];
-		nodes = this.all.values().toArray(nodes);
-		return Node.compressedJSON(nodes);
+		StringWriter out = new StringWriter();
+		try {
+			this.writeJSON(out);
+		} catch (IOException ex) {
+			throw new AssertionError("StringWriter threw " + ex);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes every node in this database to a Writer in the same format as
+	 * {@link Node#compressedJSON(Node...)} (and thus as {@link #toString()}).
+	 * Nodes are written one at a time, and the order and back-reference
+	 * indices are kept in int arrays indexed by id, so the JSON text is never
+	 * held in memory and the bookkeeping costs a few ints per node. The writer
+	 * is flushed but not closed.
+	 * 
+	 * @param out
+	 *            Where to write the JSON list
+	 * @throws IOException
+	 *             if out throws one
+	 */
+	public void writeJSON(Writer out) throws IOException {
+		lock.readLock().lock();
+		try {
+			final int[] ordinal = new int[count]; // id -> position in the output, once written
+			int[] order = this.serialisationOrder();
+			final Node.XRefer internal = new Node.XRefer() {
+				public void encode(StringBuilder sb, Node j) {
+					int id = Database.this.idOf(j);
+					if (id >= 0 && ordinal[id] > 0) Node.jsonify(sb, ordinal[id] - 1, this);
+					else Node.jsonify(sb, j.getUUID(), this);
+				}
+			};
+			Node.XRefer x = new Node.XRefer() {
+				public void encode(StringBuilder sb, Node j) {
+					j.toJSON(sb, j.hasIdentity(), internal);
+				}
+			};
+			StringBuilder sb = new StringBuilder();
+			out.write('[');
+			for (int i = 0; i < order.length; i += 1) {
+				sb.setLength(0);
+				if (i > 0) sb.append("\n,");
+				Node.jsonify(sb, this.materialize(order[i]), x);
+				out.append(sb);
+				ordinal[order[i]] = i + 1;
+			}
+			out.write("\n]");
+			out.flush();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes every node in this database to a stream as UTF-8; see
+	 * {@link #writeJSON(Writer)}. The stream is flushed but not closed.
+	 * 
+	 * @param out
+	 *            Where to write the JSON list
+	 * @throws IOException
+	 *             if out throws one
+	 */
+	public void writeJSON(OutputStream out) throws IOException {
+		this.writeJSON(new BufferedWriter(new OutputStreamWriter(out, UTF8), 1 << 16));
+	}
+
+	/**
+	 * Writes every node in this database to a channel as UTF-8; see
+	 * {@link #writeJSON(Writer)}. The channel is not closed.
+	 * 
+	 * @param out
+	 *            Where to write the JSON list
+	 * @throws IOException
+	 *             if out throws one
+	 */
+	public void writeJSON(WritableByteChannel out) throws IOException {
+		this.writeJSON(new BufferedWriter(Channels.newWriter(out, UTF8.newEncoder(), 1 << 16), 1 << 16));
+	}
+
+	/**
+	 * The ids of every node in the order Node.compressedJSON would write them:
+	 * by height, then by UUID. Heights are computed from the out-edge index,
+	 * so no node is loaded.
+	 */
+	private int[] serialisationOrder() {
+		int[] height = new int[count];
+		int tallest = 0;
+		for (int id = 0; id < count; id += 1) {
+			int h = 0;
+			for (int e = outStart[id]; e < outStart[id + 1]; e += 1)
+				if (height[outIds[e]] >= h) h = height[outIds[e]] + 1;
+			height[id] = h;
+			if (h > tallest) tallest = h;
+		}
+		int[] start = new int[tallest + 2];
+		for (int id = 0; id < count; id += 1)
+			start[height[id] + 1] += 1;
+		for (int h = 0; h <= tallest; h += 1)
+			start[h + 1] += start[h];
+		int[] order = new int[count];
+		int[] cursor = Arrays.copyOf(start, tallest + 1);
+		for (int id = 0; id < count; id += 1)
+			order[cursor[height[id]]++] = id;
+		int[] scratch = new int[count];
+		for (int h = 0; h <= tallest; h += 1)
+			this.sortByUUID(order, scratch, start[h], start[h + 1]);
+		return order;
+	}
+
+	/// merge sorts ids[from..to-1] by UUID, as UUID.compareTo orders them
+	private void sortByUUID(int[] ids, int[] scratch, int from, int to) {
+		if (to - from < 2) return;
+		int mid = (from + to) >>> 1;
+		this.sortByUUID(ids, scratch, from, mid);
+		this.sortByUUID(ids, scratch, mid, to);
+		if (compareUUIDs(ids[mid - 1], ids[mid]) <= 0) return;
+		System.arraycopy(ids, from, scratch, from, to - from);
+		int a = from, b = mid;
+		for (int i = from; i < to; i += 1) {
+			if (b >= to || (a < mid && compareUUIDs(scratch[a], scratch[b]) <= 0)) ids[i] = scratch[a++];
+			else ids[i] = scratch[b++];
+		}
+	}
+
+	private int compareUUIDs(int a, int b) {
+		int c = Long.compare(uuids[2 * a], uuids[2 * b]);
+		return c != 0 ? c : Long.compare(uuids[2 * a + 1], uuids[2 * b + 1]);
 	}
 
+	/**
+	 * Forces any nodes added to a disk-backed database out to disk. Does
+	 * nothing for in-memory databases.
+	 * 
+	 * @throws IOException
+	 *             if the store cannot be written
+	 */
+	public void flush() throws IOException {
+		this.lockWrites();
+		try {
+			if (store == null) return;
+			store.flush();
+			ids.force();
+			if (text.isDirty()) text.write(this.textFile());
+		} finally {
+			this.unlockWrites();
+		}
+	}
+
+	/**
+	 * Flushes and closes a disk-backed database. Does nothing for in-memory
+	 * databases.
+	 * 
+	 * @throws IOException
+	 *             if the store cannot be written
+	 */
+	public void close() throws IOException {
+		this.lockWrites();
+		try {
+			if (store == null) return;
+			store.close();
+			ids.close();
+			if (text.isDirty()) text.write(this.textFile());
+		} finally {
+			this.unlockWrites();
+		}
+	}
+
+	/// resolves index references within a JSON list to the ids of the list's earlier elements
+	/// adds the nodes of a JSON list given to addJSON: builds them without the write lock, and adds them NODES_PER_BATCH at a time
 	private static class UseList implements NodeLookup {
 		Database base;
-		List<Node> list;
+		int[] list = new int[16]; // index in the JSON list -> id, or -1-k for pending.get(k)
+		int size;
+		int added; // list indices below this are all ids
+		List<Node> pending = new ArrayList<Node>(); // built but not yet added
+		BitSet trusted = new BitSet(); // k such that pending.get(k) had its UUID trusted
+		Map<UUID, Node> pendingByUUID = new HashMap<UUID, Node>();
 
-		UseList(Database base, List<Node> list) {
+		UseList(Database base) {
 			this.base = base;
-			this.list = list;
+		}
+
+		void add(int entry) {
+			if (size == list.length) list = Arrays.copyOf(list, size * 2);
+			list[size++] = entry;
+		}
+
+		/// builds and adds every element, keeping those before any failure
+		void addAll(Iterator<?> elements) {
+			try {
+				while (elements.hasNext())
+					this.read(elements.next());
+			} catch (RuntimeException ex) {
+				try {
+					this.commit();
+				} catch (RuntimeException ex2) {
+					ex.addSuppressed(ex2); // the first problem is the one worth reporting
+				}
+				throw ex;
+			}
+			this.commit();
+		}
+
+		/// builds the node for one element of the list, adding the pending nodes once there is a batch of them
+		void read(Object o) {
+			if (!(o instanceof SortedMap)) throw new IllegalArgumentException("Expected a JSON object, not a " + (o == null ? null : o.getClass()));
+			@SuppressWarnings("unchecked")
+			SortedMap<String, Object> sm = (SortedMap<String, Object>) o;
+			if (sm.containsKey("!uuid")) {
+				Object uuid = sm.get("!uuid");
+				if (uuid instanceof String) {
+					int id = base.idOf(UUID.fromString((String) uuid));
+					if (id >= 0) {
+						this.add(id);
+						return;
+					}
+				}
+			}
+			boolean trust = base.trusts(sm);
+			Node n = Node.fromJSON(sm, this, trust);
+			if (trust) trusted.set(pending.size());
+			this.add(-1 - pending.size());
+			pending.add(n);
+			pendingByUUID.put(n.getUUID(), n);
+			if (pending.size() == NODES_PER_BATCH) this.commit();
+		}
+
+		/// adds the pending nodes under one hold of the write lock, so readers see all of them or none
+		void commit() {
+			if (pending.isEmpty()) return;
+			int[] ids = new int[pending.size()];
+			base.lockWrites();
+			try {
+				try {
+					for (int k = 0; k < ids.length; k += 1) {
+						ids[k] = base.insert(pending.get(k), null, true);
+						if (trusted.get(k)) base.trusted(ids[k]);
+					}
+				} finally {
+					base.announce(); // whatever was added before a failure
+				}
+			} finally {
+				base.unlockWrites();
+			}
+			for (int i = added; i < size; i += 1)
+				if (list[i] < 0) list[i] = ids[-1 - list[i]];
+			added = size;
+			pending.clear();
+			trusted.clear();
+			pendingByUUID.clear();
 		}
 
 		public Node lookup(Object o) {
@@ -325,11 +2002,23 @@ public class Database implements NodeLookup, Iterable<Node> {
 				Number n = (Number) o;
 				if (n.doubleValue() == n.intValue()) {
 					int i = n.intValue();
-					if (i >= 0 && i < list.size()) return list.get(i);
+					if (i >= 0 && i < size) return list[i] >= 0 ? base.lookup(list[i]) : pending.get(-1 - list[i]);
 				}
 				throw new IllegalArgumentException("Node indices must be positive integers smaller than the current position in the list.");
 			}
-			return base.lookup(o);
+			Node n = pendingByUUID.isEmpty() ? null : pendingByUUID.get(asUUID(o));
+			return n != null ? n : base.lookup(o);
+		}
+
+		/// o as a UUID reference, or null if it is not one
+		private static UUID asUUID(Object o) {
+			if (o instanceof UUID) return (UUID) o;
+			if (!(o instanceof String)) return null;
+			try {
+				return UUID.fromString((String) o);
+			} catch (IllegalArgumentException ex) {
+				return null;
+			}
 		}
 	}
 }
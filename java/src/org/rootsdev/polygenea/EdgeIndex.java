@@ -0,0 +1,165 @@
+package org.rootsdev.polygenea;
+
+import java.util.Arrays;
+
+/**
+ * A compact reverse-adjacency index over dense integer node ids. Most edges
+ * live in compressed sparse row (CSR) form: the sources of the edges into node
+ * <var>i</var> are {@code sources[offsets[i]]} through
+ * {@code sources[offsets[i+1]-1]}. Edges added since the last compaction live
+ * in a small append buffer, threaded into one linked list per target node, and
+ * are folded into the CSR arrays once the buffer grows to about half the size
+ * of the compacted part; adding an edge is thus amortised O(1).
+ * <p>
+ * Each edge costs four bytes once compacted, and each node eight; there are no
+ * per-edge objects.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+class EdgeIndex {
+	private static final int MIN_BUFFER = 1024;
+
+	// compacted edges
+	private int[] offsets = new int[1];
+	private int[] sources = new int[0];
+	private int compacted; // number of nodes covered by offsets
+
+	// buffered edges
+	private int[] head = new int[16]; // per target: newest buffered edge, or -1
+	private int[] bufferedDegree = new int[16];
+	private int[] bufFrom = new int[MIN_BUFFER];
+	private int[] bufTo = new int[MIN_BUFFER];
+	private int[] bufNext = new int[MIN_BUFFER];
+	private int buffered;
+	private int nodes; // one more than the largest node id seen
+
+	EdgeIndex() {
+		Arrays.fill(head, -1);
+	}
+
+	private void ensureNode(int id) {
+		if (id < nodes) return;
+		if (id >= head.length) {
+			int old = head.length;
+			int size = Math.max(id + 1, old * 2);
+			head = Arrays.copyOf(head, size);
+			Arrays.fill(head, old, size, -1);
+			bufferedDegree = Arrays.copyOf(bufferedDegree, size);
+		}
+		nodes = id + 1;
+	}
+
+	/**
+	 * Records an edge. Callers must not add the same edge twice.
+	 *
+	 * @param from
+	 *            The id of the referencing node
+	 * @param to
+	 *            The id of the referenced node
+	 */
+	void add(int from, int to) {
+		ensureNode(Math.max(from, to));
+		if (buffered == bufFrom.length) {
+			if (buffered >= MIN_BUFFER && buffered >= sources.length / 2) {
+				this.compact();
+			} else {
+				bufFrom = Arrays.copyOf(bufFrom, buffered * 2);
+				bufTo = Arrays.copyOf(bufTo, buffered * 2);
+				bufNext = Arrays.copyOf(bufNext, buffered * 2);
+			}
+		}
+		bufFrom[buffered] = from;
+		bufTo[buffered] = to;
+		bufNext[buffered] = head[to];
+		head[to] = buffered;
+		bufferedDegree[to] += 1;
+		buffered += 1;
+	}
+
+	/// folds the append buffer into the CSR arrays
+	private void compact() {
+		int[] newOffsets = new int[nodes + 1];
+		for (int i = 0; i < nodes; i += 1)
+			newOffsets[i + 1] = newOffsets[i] + compactedDegree(i) + bufferedDegree[i];
+		int[] newSources = new int[newOffsets[nodes]];
+		int[] cursor = new int[nodes];
+		for (int i = 0; i < nodes; i += 1) {
+			int d = compactedDegree(i);
+			if (d > 0) System.arraycopy(sources, offsets[i], newSources, newOffsets[i], d);
+			cursor[i] = newOffsets[i] + d;
+		}
+		for (int e = 0; e < buffered; e += 1)
+			newSources[cursor[bufTo[e]]++] = bufFrom[e];
+		offsets = newOffsets;
+		sources = newSources;
+		compacted = nodes;
+		Arrays.fill(head, 0, nodes, -1);
+		Arrays.fill(bufferedDegree, 0, nodes, 0);
+		buffered = 0;
+	}
+
+	private int compactedDegree(int to) {
+		return to < compacted ? offsets[to + 1] - offsets[to] : 0;
+	}
+
+	/**
+	 * @param to
+	 *            A node id
+	 * @return How many edges point to {@code to}.
+	 */
+	int degree(int to) {
+		if (to >= nodes) return 0;
+		return compactedDegree(to) + bufferedDegree[to];
+	}
+
+	/**
+	 * Walks the sources of the edges into a node. Compacted edges come first,
+	 * in the order they were added, followed by any buffered edges, newest
+	 * first.
+	 */
+	class Cursor {
+		private final int to;
+		private int next; // index into sources, or (after the slice) a buffered edge
+		private final int end;
+		private boolean inBuffer;
+
+		private Cursor(int to) {
+			this.to = to;
+			this.next = to < compacted ? offsets[to] : 0;
+			this.end = to < compacted ? offsets[to + 1] : 0;
+			if (next == end) {
+				inBuffer = true;
+				next = to < nodes ? head[to] : -1;
+			}
+		}
+
+		boolean hasNext() {
+			return inBuffer ? next >= 0 : next < end;
+		}
+
+		int next() {
+			if (inBuffer) {
+				int e = next;
+				next = bufNext[e];
+				return bufFrom[e];
+			}
+			int ans = sources[next++];
+			if (next == end) {
+				inBuffer = true;
+				next = head[to];
+			}
+			return ans;
+		}
+	}
+
+	/**
+	 * @param to
+	 *            A node id
+	 * @return A cursor over the ids of the nodes that point to {@code to}.
+	 *         The cursor is invalidated by any subsequent call to add.
+	 */
+	Cursor sources(int to) {
+		return new Cursor(to);
+	}
+}
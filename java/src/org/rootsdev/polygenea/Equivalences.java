@@ -0,0 +1,106 @@
+package org.rootsdev.polygenea;
+
+import java.util.Arrays;
+
+/**
+ * A disjoint-set (union-find) structure over dense integer node ids, used by
+ * {@link Database} to group the Things that Match nodes say are the same.
+ * Classes are merged by size and paths are compressed as they are followed, so
+ * both merging and finding a node's class cost amortised O(&alpha;(n)). The
+ * members of each class are also threaded into a circular list, so that
+ * listing them costs time proportional to the size of the class.
+ * <p>
+ * Every id starts out in a class of its own. The arrays only cover ids that
+ * have been merged with another, and hold values offset by one so that a
+ * zero entry means "this id is on its own"; a database with few Matches thus
+ * costs little.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+class Equivalences {
+	private int[] parent = new int[0]; // parent[i]-1 is i's parent; 0 if i is a root
+	private int[] next = new int[0]; // next[i]-1 is the next member of i's class; 0 if i is alone
+	private int[] size = new int[0]; // for roots, one less than the size of the class
+
+	private void ensure(int id) {
+		if (id < parent.length) return;
+		int n = Math.max(id + 1, parent.length * 2);
+		parent = Arrays.copyOf(parent, n);
+		next = Arrays.copyOf(next, n);
+		size = Arrays.copyOf(size, n);
+	}
+
+	/**
+	 * @param id
+	 *            A node id
+	 * @return The id that represents id's class; the same for every member of
+	 *         the class until the class is next merged with another.
+	 */
+	int find(int id) {
+		int root = id;
+		while (root < parent.length && parent[root] != 0)
+			root = parent[root] - 1;
+		while (id != root) { // compress the path
+			int up = parent[id] - 1;
+			parent[id] = root + 1;
+			id = up;
+		}
+		return root;
+	}
+
+	/**
+	 * Merges the classes of two ids.
+	 *
+	 * @param a
+	 *            A node id
+	 * @param b
+	 *            Another node id
+	 * @return {@literal true} if they were in different classes.
+	 */
+	boolean union(int a, int b) {
+		a = this.find(a);
+		b = this.find(b);
+		if (a == b) return false;
+		this.ensure(Math.max(a, b));
+		if (size[a] < size[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		parent[b] = a + 1;
+		size[a] += size[b] + 1;
+		// splice the two circular member lists together
+		int na = next[a] == 0 ? a : next[a] - 1;
+		int nb = next[b] == 0 ? b : next[b] - 1;
+		next[a] = nb + 1;
+		next[b] = na + 1;
+		return true;
+	}
+
+	/**
+	 * @param id
+	 *            A node id
+	 * @return The number of ids in id's class.
+	 */
+	int size(int id) {
+		int root = this.find(id);
+		return root < size.length ? size[root] + 1 : 1;
+	}
+
+	/**
+	 * @param id
+	 *            A node id
+	 * @return Every id in id's class (including id), in increasing order.
+	 */
+	int[] members(int id) {
+		int[] ans = new int[this.size(id)];
+		int at = id;
+		for (int i = 0; i < ans.length; i += 1) {
+			ans[i] = at;
+			at = at < next.length && next[at] != 0 ? next[at] - 1 : at;
+		}
+		Arrays.sort(ans);
+		return ans;
+	}
+}
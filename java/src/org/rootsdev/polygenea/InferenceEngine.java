@@ -0,0 +1,762 @@
+package org.rootsdev.polygenea;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.rootsdev.polygenea.nodes.Claim;
+import org.rootsdev.polygenea.nodes.Connection;
+import org.rootsdev.polygenea.nodes.Grouping;
+import org.rootsdev.polygenea.nodes.Inference;
+import org.rootsdev.polygenea.nodes.InferenceRule;
+import org.rootsdev.polygenea.nodes.InferenceRule.Link;
+import org.rootsdev.polygenea.nodes.InferenceRule.XLink;
+import org.rootsdev.polygenea.nodes.Property;
+
+/**
+ * A forward-chaining engine that applies {@link InferenceRule}s to every
+ * combination of claims in a {@link Database} that fits them. It adds the
+ * resulting {@link Inference} and consequent nodes to the database, and
+ * repeats until nothing new can be derived.
+ * <p>
+ * Rather than trying every tuple of claims, each rule is planned as a join.
+ * Candidates for an antecedent come from the first of these that applies:
+ * <ol>
+ * <li>a field of an already-matched antecedent that references it by index
+ * (e.g., the "to" of a matched Connection);
+ * <li>the incoming edges of an already-matched antecedent that it references
+ * by index;
+ * <li>the Property or relation index, for a key, value or relation that is an
+ * "!xref:" to an already-matched antecedent;
+ * <li>the same indexes, for a key, value or relation given as a constant;
+ * <li>every claim of the antecedent's "!class".
+ * </ol>
+ * Each candidate is checked against the parts of its antecedent that stand
+ * alone (see {@link InferenceRule#mightMatch(int, Claim)}) before the join
+ * goes on, and each complete tuple against the whole rule.
+ * <p>
+ * Rounds are semi-naive: after the first, a tuple is only tried if at least
+ * one of its claims was added by the round before. A match is dropped if
+ * every claim it would derive is already in the database, or already derived
+ * this round, comparing claims as if they had no source. The database is
+ * asked through its incoming-edge index: a claim already there references
+ * the same nodes, so it is among the claims referencing whichever of them
+ * has fewest. Only a derived claim that references nothing but its Inference
+ * is remembered instead, and only until the next {@link #run(int)}, so the
+ * engine holds no copy of what is in the database. Each claim is thus
+ * derived once, with one Inference, however many ways there are to derive
+ * it; without this, a transitive rule would derive a pair d steps apart once
+ * per way of splitting the chain between them, a number that grows
+ * exponentially with d. Notes, and claims that depend on notes, are never
+ * used as antecedents.
+ * <p>
+ * After {@link #listen()}, the engine also works incrementally, in the manner
+ * of TREAT: it listens to the database, and each new claim activates only the
+ * antecedents whose class and stand-alone tests it passes. It is then joined,
+ * as the seed, with the claims already there. Those stand-alone tests are
+ * the alpha network. For antecedents that can only be found by scanning their
+ * class, the claims that pass are also kept in an alpha memory, up to
+ * {@link #setAlphaLimit(int)} ids; a memory that outgrows that is dropped and
+ * the class scanned again. There are no beta memories of partial matches.
+ * The joins run against the database's indexes instead, so the engine's
+ * memory does not grow with the number of partial matches.
+ * <p>
+ * Batch runs can be spread over several threads with {@link #run(int)}. Each
+ * round is split by rule, by seed antecedent and by ranges of seed
+ * candidates. Workers only look at nodes that were in the database when the
+ * round began, and each keeps its own results. The results are then deduplicated
+ * and added in one batch, in the same order a single thread would find
+ * them.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class InferenceEngine {
+	private static final int[] NONE = new int[0];
+	private static final int SEEDS_PER_TASK = 256;
+
+	// ways of finding an antecedent's candidates, best first; see Plan.access. The last three give ids in increasing order.
+	private static final int OUT = 0, IN = 1, XREF = 2, CONSTANT = 3, SCAN = 4;
+
+	private final Database db;
+	private final List<InferenceRule> rules;
+	private final Map<Class<?>, int[]> scans = new HashMap<Class<?>, int[]>(); // class -> ids, for the current round
+	private final Map<Class<?>, List<int[]>> activations = new HashMap<Class<?>, List<int[]>>(); // node class -> {plan, antecedent} pairs it may fill
+	private final Map<Integer, Integer> depth = new HashMap<Integer, Integer>(); // derived ids not yet activated -> length of the chain of activations behind them
+	private List<Plan> plans; // built on first use; see plans()
+	private final Set<UUID> unreferencing = new HashSet<UUID>(); // sourceless(n) for each n derived since run() that references only its Inference; see known()
+	private Database.Listener listener; // non-null while listening
+	private int maxRounds = 100;
+	private int alphaLimit = 1 << 16;
+	private int rounds;
+	private boolean fixpoint;
+	private boolean running; // true during run(), which handles the nodes it adds itself
+	private int done; // every rule has been applied to every tuple of nodes with smaller ids
+	private int inferred;
+
+	/**
+	 * Creates an engine for every InferenceRule currently in a database.
+	 *
+	 * @param db
+	 *            The database to read claims from and add inferences to
+	 */
+	public InferenceEngine(Database db) {
+		this(db, db.ofClass(InferenceRule.class));
+	}
+
+	/**
+	 * Creates an engine for a given set of rules. Rules that are not yet in
+	 * the database are added to it when the engine is first run.
+	 *
+	 * @param db
+	 *            The database to read claims from and add inferences to
+	 * @param rules
+	 *            The rules to apply
+	 */
+	public InferenceEngine(Database db, Collection<InferenceRule> rules) {
+		this.db = db;
+		this.rules = new ArrayList<InferenceRule>(rules);
+	}
+
+	/**
+	 * Limits how many rounds {@link #run()} may take, and, while listening,
+	 * how long a chain of activations one new node may set off. Rules that can
+	 * feed themselves forever (e.g., "every person has a mother") never reach
+	 * a fixpoint, and this stops them. The default is 100.
+	 *
+	 * @param maxRounds
+	 *            The most rounds to run; must be positive
+	 */
+	public void setMaxRounds(int maxRounds) {
+		if (maxRounds < 1) throw new IllegalArgumentException("Must allow at least one round, not " + maxRounds);
+		this.maxRounds = maxRounds;
+	}
+
+	/**
+	 * @return The most rounds {@link #run()} may take.
+	 */
+	public int getMaxRounds() {
+		return this.maxRounds;
+	}
+
+	/**
+	 * Limits the size of each alpha memory kept while listening; see the
+	 * class comment. The default is 65536 ids, i.e. 256KB.
+	 *
+	 * @param alphaLimit
+	 *            The most ids to keep in one alpha memory; 0 keeps none
+	 */
+	public void setAlphaLimit(int alphaLimit) {
+		if (alphaLimit < 0) throw new IllegalArgumentException("Alpha memories cannot be limited to " + alphaLimit);
+		this.alphaLimit = alphaLimit;
+	}
+
+	/**
+	 * @return The number of rounds the last {@link #run()} took.
+	 */
+	public int rounds() {
+		return this.rounds;
+	}
+
+	/**
+	 * @return {@literal true} if the last {@link #run()} stopped because
+	 *         there was nothing more to derive, rather than because it ran out
+	 *         of rounds.
+	 */
+	public boolean reachedFixpoint() {
+		return this.fixpoint;
+	}
+
+	/**
+	 * @return The number of Inference nodes this engine has added, by
+	 *         {@link #run()} or while listening.
+	 */
+	public int inferred() {
+		return this.inferred;
+	}
+
+	/**
+	 * Applies every rule to every tuple of claims it fits, adds what they
+	 * derive, and repeats with the new claims until nothing more is derived or
+	 * {@link #getMaxRounds()} rounds have passed. Once a run has reached a
+	 * fixpoint, the next run only tries tuples that include claims added to
+	 * the database since.
+	 *
+	 * @return The number of Inference nodes added.
+	 * @throws UnsupportedOperationException
+	 *             if a rule uses an unknown "!___:" target string
+	 * @throws IllegalArgumentException
+	 *             if a rule's consequents are not valid nodes
+	 */
+	public int run() {
+		try {
+			return this.run(1);
+		} catch (InterruptedException ex) {
+			throw new AssertionError("a single thread never waits for others");
+		}
+	}
+
+	/**
+	 * Does what {@link #run()} does, using a pool of worker threads to match
+	 * rules against claims. The nodes added, and the order they are added in,
+	 * are the same as for {@link #run()}. Other threads may add to the
+	 * database while this runs; what they add after a round has begun is
+	 * matched by a later round, or by the next run.
+	 *
+	 * @param threads
+	 *            How many worker threads to use; e.g.,
+	 *            {@code Runtime.getRuntime().availableProcessors()}
+	 * @return The number of Inference nodes added.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the workers
+	 * @throws UnsupportedOperationException
+	 *             if a rule uses an unknown "!___:" target string
+	 * @throws IllegalArgumentException
+	 *             if a rule's consequents are not valid nodes
+	 */
+	public int run(int threads) throws InterruptedException {
+		if (threads < 1) throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		List<Plan> plans = this.plans();
+		for (Plan p : plans)
+			p.alpha = null; // not kept up to date by run()
+		unreferencing.clear();
+		this.running = true;
+		try {
+			return this.rounds(plans, threads);
+		} finally {
+			this.running = false;
+			scans.clear();
+			if (listener != null) for (Plan p : plans)
+				p.fillAlpha();
+		}
+	}
+
+	/// the body of run(threads)
+	private int rounds(List<Plan> plans, int threads) throws InterruptedException {
+		int added = 0;
+		int lo = this.done;
+		this.rounds = 0;
+		this.fixpoint = false;
+		while (!this.fixpoint && this.rounds < this.maxRounds) {
+			int hi = db.size();
+			Map<UUID, Node[]> found = new LinkedHashMap<UUID, Node[]>();
+			if (lo < hi) {
+				scans.clear();
+				if (threads == 1) {
+					for (Plan p : plans)
+						for (int seed = 0; seed < p.types.length; seed += 1)
+							if (lo > 0 || seed == 0) p.join(p.orders[seed], 0, new Claim[p.types.length], new int[p.types.length], lo, hi, found);
+				} else {
+					found = this.round(plans, lo, hi, threads);
+				}
+				this.rounds += 1;
+			}
+			if (found.isEmpty()) {
+				this.fixpoint = true;
+				this.done = hi;
+				break;
+			}
+			db.add(this.derived(found));
+			added += found.size();
+			this.inferred += found.size();
+			lo = hi;
+		}
+		return added;
+	}
+
+	/// one task of a parallel round: a range of the seed candidates for one join order
+	private static final class Task {
+		final Plan plan;
+		final Step[] steps;
+		final int[] seeds;
+		final int from, to;
+
+		Task(Plan plan, Step[] steps, int[] seeds, int from, int to) {
+			this.plan = plan;
+			this.steps = steps;
+			this.seeds = seeds;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/// one round of run(threads), split into tasks; returns what they found in the order one thread would find it
+	private Map<UUID, Node[]> round(List<Plan> plans, final int lo, final int hi, int threads) throws InterruptedException {
+		final List<Task> tasks = new ArrayList<Task>();
+		for (Plan p : plans) {
+			for (int seed = 0; seed < p.types.length; seed += 1) {
+				if (lo == 0 && seed > 0) continue;
+				Step[] steps = p.orders[seed];
+				int[] seeds = p.candidates(steps[0], null, null); // increasing, as nothing is matched yet
+				for (int from = lowerBound(seeds, lo), to = lowerBound(seeds, hi); from < to; from += SEEDS_PER_TASK)
+					tasks.add(new Task(p, steps, seeds, from, Math.min(from + SEEDS_PER_TASK, to)));
+			}
+			for (Step[] steps : p.orders)
+				for (Step step : steps)
+					if (step.kind == SCAN) scan(p.types[step.antecedent]); // so that workers only read scans
+		}
+		db.prepareForReaders();
+		final List<Map<UUID, Node[]>> results = new ArrayList<Map<UUID, Node[]>>();
+		for (int i = 0; i < tasks.size(); i += 1)
+			results.add(null);
+		final AtomicInteger nextTask = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int t = 0; t < threads; t += 1) {
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							for (int i = nextTask.getAndIncrement(); i < tasks.size() && failure.get() == null; i = nextTask.getAndIncrement()) {
+								Task task = tasks.get(i);
+								int k = task.plan.types.length;
+								Map<UUID, Node[]> found = new LinkedHashMap<UUID, Node[]>();
+								task.plan.each(task.steps, 0, task.seeds, task.from, task.to, new Claim[k], new int[k], lo, hi, found);
+								results.set(i, found);
+							}
+						} catch (Throwable ex) {
+							failure.compareAndSet(null, ex);
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {}
+		} finally {
+			pool.shutdownNow();
+		}
+		Throwable ex = failure.get();
+		if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+		if (ex instanceof Error) throw (Error) ex;
+		Map<UUID, Node[]> found = new LinkedHashMap<UUID, Node[]>();
+		for (Map<UUID, Node[]> part : results)
+			for (Map.Entry<UUID, Node[]> e : part.entrySet())
+				if (!found.containsKey(e.getKey())) found.put(e.getKey(), e.getValue());
+		return found;
+	}
+
+	/**
+	 * Runs to a fixpoint (as {@link #run()} does) and then keeps listening to
+	 * the database. From then on, each node added to the database is matched
+	 * against the rules as soon as the call that added it returns, and what
+	 * it lets them derive is added too, before that call returns. Derived
+	 * claims are matched in turn, up to {@link #getMaxRounds()} activations
+	 * deep; a claim further down the chain is left for the next
+	 * {@link #run()}, and {@link #reachedFixpoint()} becomes false.
+	 * <p>
+	 * Activations run while the database's write lock is held, so nodes may
+	 * be added from several threads at once; {@link #run()} should not be
+	 * called from another thread while the engine is listening.
+	 *
+	 * @return The number of Inference nodes added by the initial run.
+	 */
+	public int listen() {
+		if (listener != null) return 0;
+		int added = this.run();
+		this.listener = new Database.Listener() {
+			public void added(Database db, int id) {
+				InferenceEngine.this.activate(id);
+			}
+		};
+		db.addListener(listener);
+		for (Plan p : this.plans())
+			p.fillAlpha();
+		return added;
+	}
+
+	/**
+	 * Stops listening to the database and drops the alpha memories. Nodes
+	 * added after this are only matched by the next {@link #run()} or
+	 * {@link #listen()}.
+	 */
+	public void stopListening() {
+		if (listener == null) return;
+		db.removeListener(listener);
+		this.listener = null;
+		for (Plan p : this.plans())
+			p.alpha = null;
+	}
+
+	/**
+	 * @return {@literal true} if the engine is matching new nodes as they are
+	 *         added.
+	 */
+	public boolean isListening() {
+		return listener != null;
+	}
+
+	/// the rules, each analysed once; adds any rules the database lacks
+	private List<Plan> plans() {
+		if (this.plans == null) {
+			List<Plan> ans = new ArrayList<Plan>();
+			for (InferenceRule rule : rules) {
+				if (!db.contains(rule.getUUID())) db.add(rule);
+				Plan p = new Plan(rule);
+				if (!p.viable) continue;
+				ans.add(p);
+			}
+			this.plans = ans;
+		}
+		return this.plans;
+	}
+
+	/// the {plan, antecedent} pairs whose class a node of class c has
+	private List<int[]> activations(Class<?> c) {
+		List<int[]> ans = activations.get(c);
+		if (ans == null) {
+			ans = new ArrayList<int[]>();
+			for (int i = 0; i < plans.size(); i += 1)
+				for (int a = 0; a < plans.get(i).types.length; a += 1)
+					if (plans.get(i).types[a].isAssignableFrom(c)) ans.add(new int[] { i, a });
+			activations.put(c, ans);
+		}
+		return ans;
+	}
+
+	/// applies every rule to the tuples whose newest member is node id, as the listener
+	private void activate(int id) {
+		Integer chain = depth.remove(id);
+		if (running) return;
+		int generation = chain == null ? 0 : chain;
+		if (generation >= maxRounds) {
+			this.fixpoint = false; // leave it for run()
+			return;
+		}
+		boolean inOrder = done == id;
+		Node n = db.isNote(id) ? null : db.lookup(id);
+		if (n instanceof Claim) {
+			List<int[]> fits = new ArrayList<int[]>();
+			for (int[] act : this.activations(n.getClass()))
+				if (plans.get(act[0]).rule.mightMatch(act[1], (Claim) n)) {
+					plans.get(act[0]).remember(act[1], id); // before joining, so n may fill several antecedents
+					fits.add(act);
+				}
+			Map<UUID, Node[]> found = new LinkedHashMap<UUID, Node[]>();
+			for (int[] act : fits) {
+				Plan p = plans.get(act[0]);
+				p.join(p.orders[act[1]], 0, new Claim[p.types.length], new int[p.types.length], id, id + 1, found);
+			}
+			scans.clear();
+			if (!found.isEmpty()) {
+				int before = db.size();
+				db.add(this.derived(found)); // announced after this returns
+				for (int i = before; i < db.size(); i += 1)
+					depth.put(i, generation + 1);
+				this.inferred += found.size();
+			}
+		}
+		if (inOrder) done = id + 1;
+	}
+
+	/// the value of n's public field name, or null if it has none
+	private static Object field(Node n, String name) {
+		NodeShape s = NodeShape.of(n.getClass());
+		int i = Arrays.binarySearch(s.names, name);
+		return i < 0 ? null : s.get(i, n);
+	}
+
+	/// the nodes of the matches found, ready to add; remembers the derived claims known() cannot find in the database
+	private Node[] derived(Map<UUID, Node[]> found) {
+		List<Node> batch = new ArrayList<Node>();
+		for (Node[] made : found.values()) {
+			batch.addAll(Arrays.asList(made));
+			for (int i = 1; i < made.length; i += 1)
+				if (!made[i].hasIdentity() && references(made[i], made[0]) == null) unreferencing.add(sourceless(made[i]));
+		}
+		return batch.toArray(new Node[batch.size()]);
+	}
+
+	/// the ids of the nodes n references other than its source; empty if there are none, null if one is not in the database
+	private int[] references(Node n, Node source) {
+		int[] ids = new int[n.outDegree()];
+		int k = 0;
+		for (int i = 0; i < ids.length; i += 1) {
+			Node r = n.out(i);
+			if (r == source) continue;
+			int id = db.idOf(r);
+			if (id < 0) return null;
+			ids[k++] = id;
+		}
+		return Arrays.copyOf(ids, k);
+	}
+
+	/// true if a claim equal to n but for its source, whose sourceless(n) is key, is already in the database or was derived unreferencing
+	private boolean known(Node n, UUID key, Node source) {
+		if (n.hasIdentity()) return db.contains(key);
+		int[] refs = this.references(n, source);
+		if (refs == null) return false; // refers to something else this match derives, so it is new too
+		if (refs.length == 0) return unreferencing.contains(key);
+		int best = refs[0];
+		for (int r : refs)
+			if (db.inDegree(r) < db.inDegree(best)) best = r;
+		for (int id : db.in(best)) {
+			if (id >= db.size()) continue;
+			int[] out = db.out(id);
+			boolean all = true;
+			for (int r : refs)
+				all &= Arrays.binarySearch(out, r) >= 0;
+			if (!all) continue;
+			Node c = db.lookup(id);
+			if (c.getClass() == n.getClass() && sourceless(c).equals(key)) return true;
+		}
+		return false;
+	}
+
+	/// the UUID n would have if it had no source; for nodes with identity, just their UUID
+	private static UUID sourceless(Node n) {
+		if (n.hasIdentity()) return n.getUUID();
+		NodeShape shape = NodeShape.of(n.getClass());
+		StringBuilder sb = new StringBuilder(shape.header);
+		for (int i = 0; i < shape.names.length; i += 1) {
+			Object val = shape.get(i, n);
+			if (val == null || "source".equals(shape.names[i])) continue;
+			sb.append(',').append(shape.keys[i]);
+			Node.jsonify(sb, val, Node.XRefer.AS_UUID);
+		}
+		return UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, sb.append('}'));
+	}
+
+	/// the ids of every claim of a class, computed once per round
+	private int[] scan(Class<?> type) {
+		int[] ids = scans.get(type);
+		if (ids == null) {
+			@SuppressWarnings("unchecked")
+			Class<? extends Node> t = (Class<? extends Node>) type;
+			scans.put(type, ids = db.idsOf(t));
+		}
+		return ids;
+	}
+
+	/// the index of the first of some increasing ids that is at least min
+	private static int lowerBound(int[] ids, int min) {
+		int i = Arrays.binarySearch(ids, min);
+		return i < 0 ? -i - 1 : i;
+	}
+
+	/// how to find the candidates for one antecedent, given those matched before it
+	private static final class Step {
+		final int antecedent, kind;
+		final Link link; // for OUT and IN
+		final XLink xlink; // for XREF
+
+		Step(int antecedent, int kind, Link link, XLink xlink) {
+			this.antecedent = antecedent;
+			this.kind = kind;
+			this.link = link;
+			this.xlink = xlink;
+		}
+	}
+
+	/// one rule's antecedents, analysed for joining, and a join order for each choice of seed
+	private final class Plan {
+		final InferenceRule rule;
+		final Class<?>[] types;
+		final List<Map<String, String>> constants = new ArrayList<Map<String, String>>();
+		final List<Link> links;
+		final List<XLink> xlinks;
+		final Step[][] orders;
+		boolean viable = true; // false if no tuple can ever match
+		int[][] alpha; // while listening: per antecedent found by scanning, the ids passing mightMatch; null if not kept
+		int[] alphaSize;
+
+		Plan(InferenceRule rule) {
+			this.rule = rule;
+			int k = rule.antecedents.size();
+			this.types = new Class<?>[k];
+			for (int a = 0; a < k; a += 1) {
+				SortedMap<String, Object> targ = rule.antecedents.get(a);
+				Object name = targ.get("!class");
+				types[a] = name == null ? Claim.class : Database.nodeClass(name.toString());
+				if (types[a] == null || !Claim.class.isAssignableFrom(types[a])) viable = false;
+				constants.add(rule.constants(a));
+			}
+			this.links = rule.links();
+			this.xlinks = rule.xlinks();
+			for (Link l : links)
+				if (l.target < 0 || l.target >= k) viable = false;
+			for (XLink x : xlinks)
+				if (x.from >= k) viable = false;
+			this.orders = new Step[k][];
+			if (viable) for (int seed = 0; seed < k; seed += 1)
+				orders[seed] = this.order(seed);
+		}
+
+		/// picks, one at a time, the unmatched antecedent that is cheapest to find
+		private Step[] order(int seed) {
+			Step[] steps = new Step[types.length];
+			boolean[] bound = new boolean[types.length];
+			steps[0] = this.access(seed, bound);
+			bound[seed] = true;
+			for (int n = 1; n < steps.length; n += 1) {
+				Step best = null;
+				for (int a = 0; a < types.length; a += 1)
+					if (!bound[a]) {
+						Step s = this.access(a, bound);
+						if (best == null || s.kind < best.kind) best = s;
+					}
+				steps[n] = best;
+				bound[best.antecedent] = true;
+			}
+			return steps;
+		}
+
+		/// the best way to find antecedent a's candidates once the bound antecedents are matched
+		private Step access(int a, boolean[] bound) {
+			for (Link l : links)
+				if (l.target == a && l.owner != a && bound[l.owner]) return new Step(a, OUT, l, null);
+			for (Link l : links)
+				if (l.owner == a && l.target != a && bound[l.target]) return new Step(a, IN, l, null);
+			for (XLink x : xlinks)
+				if (x.owner == a && bound[x.from] && this.indexed(a, x.field)) return new Step(a, XREF, null, x);
+			for (String f : constants.get(a).keySet())
+				if (this.indexed(a, f)) return new Step(a, CONSTANT, null, null);
+			return new Step(a, SCAN, null, null);
+		}
+
+		/// true if antecedent a's field is kept in one of the database's string indexes
+		private boolean indexed(int a, String field) {
+			if (Property.class.isAssignableFrom(types[a])) return "key".equals(field) || "value".equals(field);
+			if (Connection.class.isAssignableFrom(types[a]) || Grouping.class.isAssignableFrom(types[a])) return "relation".equals(field);
+			return false;
+		}
+
+		/// the ids that might be antecedent step.antecedent, given the tuple matched so far
+		private int[] candidates(Step step, Claim[] tuple, int[] ids) {
+			int a = step.antecedent;
+			switch (step.kind) {
+			case OUT: {
+				Object v = field(tuple[step.link.owner], step.link.field);
+				if (step.link.position >= 0) {
+					if (!(v instanceof Collection) || ((Collection<?>) v).size() <= step.link.position) return NONE;
+					Iterator<?> it = ((Collection<?>) v).iterator();
+					for (int i = 0; i < step.link.position; i += 1)
+						it.next();
+					v = it.next();
+				}
+				if (!(v instanceof Node)) return NONE;
+				int id = db.idOf((Node) v);
+				return id < 0 ? NONE : new int[] { id };
+			}
+			case IN:
+				return db.in(ids[step.link.target]);
+			case XREF: {
+				Object v = field(tuple[step.xlink.from], step.xlink.other);
+				if (!(v instanceof String)) return NONE; // an xref only ever matches strings
+				return this.lookup(a, step.xlink.field, (String) v);
+			}
+			case CONSTANT: {
+				Map<String, String> consts = constants.get(a);
+				if (Property.class.isAssignableFrom(types[a])) {
+					if (consts.containsKey("value")) return db.propertyIds(consts.get("key"), consts.get("value"));
+					return db.propertyIdsInRange(consts.get("key"), null, null);
+				}
+				return db.relatedIds(consts.get("relation"));
+			}
+			default:
+				if (alpha != null && alpha[a] != null) return Arrays.copyOf(alpha[a], alphaSize[a]);
+				return scan(types[a]);
+			}
+		}
+
+		/// starts an alpha memory for each antecedent that some join order finds by scanning
+		void fillAlpha() {
+			alpha = new int[types.length][];
+			alphaSize = new int[types.length];
+			boolean[] started = new boolean[types.length];
+			for (Step[] steps : orders)
+				for (int n = 1; n < steps.length; n += 1) {
+					int a = steps[n].antecedent;
+					if (steps[n].kind != SCAN || started[a]) continue;
+					started[a] = true;
+					alpha[a] = new int[16];
+					for (int id : scan(types[a]))
+						if (!db.isNote(id) && rule.mightMatch(a, (Claim) db.lookup(id))) this.remember(a, id);
+				}
+			scans.clear();
+		}
+
+		/// adds id to antecedent a's alpha memory, if it has one; drops the memory if it would outgrow alphaLimit
+		void remember(int a, int id) {
+			if (alpha == null || alpha[a] == null) return;
+			if (alphaSize[a] >= alphaLimit) {
+				alpha[a] = null;
+				return;
+			}
+			if (alphaSize[a] == alpha[a].length) alpha[a] = Arrays.copyOf(alpha[a], alphaSize[a] * 2);
+			alpha[a][alphaSize[a]++] = id;
+		}
+
+		/// the ids of the nodes whose indexed field has value v (narrowed by a constant key, if any)
+		private int[] lookup(int a, String field, String v) {
+			if ("key".equals(field)) return db.propertyIdsInRange(v, null, null);
+			if ("value".equals(field)) return db.propertyIds(constants.get(a).get("key"), v);
+			return db.relatedIds(v);
+		}
+
+		/// identifies the claims in made[1..], ignoring their source; null if every one of them is already known
+		UUID derivedKey(Node[] made) {
+			if (made.length == 1) return made[0].getUUID();
+			boolean fresh = false;
+			StringBuilder sb = made.length > 2 ? new StringBuilder() : null;
+			UUID u = null;
+			for (int i = 1; i < made.length; i += 1) {
+				u = sourceless(made[i]);
+				if (!fresh && !known(made[i], u, made[0])) fresh = true;
+				if (sb != null) sb.append(u).append(',');
+			}
+			if (!fresh) return null;
+			return sb == null ? u : UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, sb);
+		}
+
+		/// matches steps[n..] in every way it can, adding what each complete match derives to found
+		void join(Step[] steps, int n, Claim[] tuple, int[] ids, int lo, int hi, Map<UUID, Node[]> found) {
+			if (n == steps.length) {
+				Node[] made = rule.consequentsOf(tuple.clone());
+				if (made == null || db.contains(made[0].getUUID())) return;
+				UUID u = this.derivedKey(made);
+				if (u != null && !found.containsKey(u)) found.put(u, made);
+				return;
+			}
+			int[] candidates = n == 0 && hi - lo == 1 ? new int[] { lo } : this.candidates(steps[n], tuple, ids);
+			this.each(steps, n, candidates, 0, candidates.length, tuple, ids, lo, hi, found);
+		}
+
+		/// join, for candidates[from..to) as antecedent steps[n].antecedent
+		void each(Step[] steps, int n, int[] candidates, int from, int to, Claim[] tuple, int[] ids, int lo, int hi, Map<UUID, Node[]> found) {
+			Step step = steps[n];
+			int a = step.antecedent;
+			int seed = steps[0].antecedent;
+			int min = a == seed ? lo : 0;
+			int max = a < seed ? lo : hi; // earlier antecedents come from before this round's seed
+			boolean sorted = step.kind >= XREF;
+			int i = sorted ? Math.max(from, lowerBound(candidates, min)) : from;
+			for (; i < to; i += 1) {
+				int id = candidates[i];
+				if (sorted && id >= max) break;
+				if (id < min || id >= max || db.isNote(id)) continue;
+				Node node = db.lookup(id);
+				if (!types[a].isInstance(node)) continue;
+				Claim c = (Claim) node;
+				if (!rule.mightMatch(a, c)) continue;
+				tuple[a] = c;
+				ids[a] = id;
+				this.join(steps, n + 1, tuple, ids, lo, hi, found);
+			}
+			tuple[a] = null;
+		}
+	}
+}
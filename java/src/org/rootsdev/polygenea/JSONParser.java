@@ -1,6 +1,5 @@
 package org.rootsdev.polygenea;
 
-import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -9,7 +8,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
 import java.net.URL;
 import java.util.Collection;
 import java.util.Comparator;
@@ -17,6 +15,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -140,71 +139,142 @@ public class JSONParser {
 		public MalformedJSONException(Throwable cause) { super(cause); }
 	}
 	
+	/**
+	 * Reads characters a buffer at a time rather than one Reader.read() call at
+	 * a time. If the underlying reader supports marks, each buffer is read
+	 * under a mark so that finish() can put the reader back just past the last
+	 * character actually consumed.
+	 */
+	private static final class Lexer {
+		private final Reader r; // null if lexing a fixed array
+		private final boolean restore;
+		private char[] buf;
+		private int pos, lim;
+		
+		Lexer(Reader r) {
+			this.r = r;
+			this.restore = r.markSupported();
+			this.buf = new char[8192];
+		}
+		Lexer(String s) {
+			this.r = null;
+			this.restore = false;
+			this.buf = s.toCharArray();
+			this.lim = buf.length;
+		}
+		
+		/// refills the buffer; returns false at the end of input
+		private boolean fill() throws IOException {
+			if (r == null) return false;
+			if (restore) r.mark(buf.length);
+			int n = r.read(buf, 0, buf.length);
+			while (n == 0) n = r.read(buf, 0, buf.length);
+			pos = 0;
+			lim = Math.max(n, 0);
+			return n > 0;
+		}
+		int read() throws IOException {
+			if (pos < lim || fill()) return buf[pos++];
+			return -1;
+		}
+		int peek() throws IOException {
+			if (pos < lim || fill()) return buf[pos];
+			return -1;
+		}
+		/// returns the next non-whitespace character, or -1 at the end of input
+		int readSkippingWhitespace() throws IOException {
+			while (true) {
+				while (pos < lim) {
+					char c = buf[pos++];
+					if (!Character.isWhitespace(c)) return c;
+				}
+				if (!fill()) return -1;
+			}
+		}
+		/// leaves a mark-supporting reader just after the last character consumed
+		void finish() throws IOException {
+			if (!restore) return;
+			r.reset();
+			long skip = pos;
+			while (skip > 0) skip -= r.skip(skip);
+			pos = lim = 0;
+		}
+	}
+	
 	/// Assumes the initial " has already been read
-	private static String parseRestOfString(Reader r) {
+	private static String parseRestOfString(Lexer in) {
 		try {
-			StringBuilder sb = new StringBuilder();
-			int c = r.read();
-			while (c > -1 && c != '"') {
-				if (c == '\\') {
-					c = r.read();
-					if (c == 'b') sb.append('\b');
-					else if (c == 'f') sb.append('\f');
-					else if (c == 'n') sb.append('\n');
-					else if (c == 'r') sb.append('\r');
-					else if (c == 't') sb.append('\t');
-					else if (c == '"') sb.append('"');
-					else if (c == '\\') sb.append('\\');
-					else if (c == 'u') {
-						int n = 0;
-						n |= Character.digit(r.read(), 16) << 12;
-						n |= Character.digit(r.read(), 16) << 8;
-						n |= Character.digit(r.read(), 16) << 4;
-						n |= Character.digit(r.read(), 16);
-						if (n <= -1) throw new MalformedJSONException("\\u escape sequence not followed by 4 hex digits");
-						sb.append((char)n);
-					} else {
-						throw new MalformedJSONException("\\"+(char)c+", not a legal JSON escape sequence");
-					}
+			StringBuilder sb = null;
+			while (true) {
+				int start = in.pos;
+				char[] buf = in.buf;
+				int i = start;
+				while (i < in.lim && buf[i] != '"' && buf[i] != '\\') i += 1;
+				if (i < in.lim && buf[i] == '"' && sb == null) {
+					in.pos = i + 1;
+					return new String(buf, start, i - start);
+				}
+				if (sb == null) sb = new StringBuilder(Math.max(16, 2 * (i - start)));
+				sb.append(buf, start, i - start);
+				in.pos = i;
+				if (i == in.lim) {
+					if (in.peek() == -1) throw new EOFException("Input ended inside a quoted string");
+					continue; // the buffer was refilled
+				}
+				in.pos = i + 1;
+				if (buf[i] == '"') return sb.toString();
+				int c = in.read();
+				if (c == 'b') sb.append('\b');
+				else if (c == 'f') sb.append('\f');
+				else if (c == 'n') sb.append('\n');
+				else if (c == 'r') sb.append('\r');
+				else if (c == 't') sb.append('\t');
+				else if (c == '"') sb.append('"');
+				else if (c == '\\') sb.append('\\');
+				else if (c == 'u') {
+					int n = 0;
+					n |= Character.digit(in.read(), 16) << 12;
+					n |= Character.digit(in.read(), 16) << 8;
+					n |= Character.digit(in.read(), 16) << 4;
+					n |= Character.digit(in.read(), 16);
+					if (n <= -1) throw new MalformedJSONException("\\u escape sequence not followed by 4 hex digits");
+					sb.append((char)n);
+				} else if (c == -1) {
+					throw new EOFException("Input ended inside a quoted string");
 				} else {
-					sb.append((char)c);
+					throw new MalformedJSONException("\\"+(char)c+", not a legal JSON escape sequence");
 				}
-				c = r.read();
 			}
-			if (c == -1) throw new EOFException("Input ended inside a quoted string");
-			return sb.toString();
 		} catch (MalformedJSONException t) {
 			throw t;
 		} catch (Throwable t) {
 			throw new MalformedJSONException(t.getMessage(), t);
 		}
 	}
-	/// assumes one character (c) has already been read. Easier than using mark all the time.
-	private static Object parseRest(int c, Reader r, ListOrSet policy) {
+	/// assumes one character (c) has already been read. Easier than peeking all the time.
+	private static Object parseRest(int c, Lexer in, ListOrSet policy) {
 		try {
-			while (c > -1 && Character.isWhitespace(c)) c = r.read();
+			if (c > -1 && Character.isWhitespace(c)) c = in.readSkippingWhitespace();
 			if (c <= -1) throw new EOFException("End of input reached");
 			switch (c) {
-			case '"': return parseRestOfString(r);
+			case '"': return parseRestOfString(in);
 			case '{':
 				Map<String, Object> obj = new TreeMap<String, Object>();
-				c = r.read(); while (c > -1 && Character.isWhitespace(c)) c = r.read();
+				c = in.readSkippingWhitespace();
 				while (c != '}') {
 					if (c <= -1) throw new EOFException("End of input reached after a {");
 					if (c == '"') {
-						String key = parseRestOfString(r);
+						String key = parseRestOfString(in);
 						if (obj.containsKey(key))
 							throw new MalformedJSONException("Cannot put duplicate keys in an object");
-						c = r.read(); while (c > -1 && Character.isWhitespace(c)) c = r.read();
+						c = in.readSkippingWhitespace();
 						if (c != ':') throw new MalformedJSONException("Object keys must be followed by :value, not "+(char)c);
-						Object value = parse(r, policy);
+						Object value = parseRest(in.read(), in, policy);
 						obj.put(key, value);
-						c = r.read();
-						while (c > -1 && Character.isWhitespace(c)) c = r.read();
+						c = in.readSkippingWhitespace();
 						if (c == '}') return obj;
 						if (c != ',') throw new MalformedJSONException("Exepcted , or }");
-						c = r.read();
-						while (c > -1 && Character.isWhitespace(c)) c = r.read();
+						c = in.readSkippingWhitespace();
 						if (c == '}') throw new MalformedJSONException("Trailing commas not allowed");
 					} else {
 						throw new MalformedJSONException("Object keys must be strings");
@@ -213,17 +283,15 @@ public class JSONParser {
 				return obj;
 			case '[':
 				List<Object> ans = new LinkedList<Object>();
-				c = r.read(); while (c > -1 && Character.isWhitespace(c)) c = r.read();
+				c = in.readSkippingWhitespace();
 				while (c != ']') {
 					if (c <= -1) throw new EOFException("End of input reached after a {");
-					Object value = parseRest(c,r, policy);
+					Object value = parseRest(c, in, policy);
 					ans.add(value);
-					c = r.read();
-					while (c > -1 && Character.isWhitespace(c)) c = r.read();
+					c = in.readSkippingWhitespace();
 					if (c == ']') break;
 					if (c != ',') throw new MalformedJSONException("Expected , or ]");
-					c = r.read();
-					while (c > -1 && Character.isWhitespace(c)) c = r.read();
+					c = in.readSkippingWhitespace();
 					if (c == ']') throw new MalformedJSONException("Trailing commas not allowed");
 				}
 				if (policy != ListOrSet.SET_NEVER) {
@@ -246,27 +314,27 @@ public class JSONParser {
 				}
 				return ans;
 			case 't':
-				if ((c = r.read()) != 'r') throw new MalformedJSONException("Unknown keyword begining t"+(char)c);
-				if ((c = r.read()) != 'u') throw new MalformedJSONException("Unknown keyword begining tr"+(char)c);
-				if ((c = r.read()) != 'e') throw new MalformedJSONException("Unknown keyword begining tru"+(char)c);
-				r.mark(1); c = r.read(); r.reset();
+				if ((c = in.read()) != 'r') throw new MalformedJSONException("Unknown keyword begining t"+(char)c);
+				if ((c = in.read()) != 'u') throw new MalformedJSONException("Unknown keyword begining tr"+(char)c);
+				if ((c = in.read()) != 'e') throw new MalformedJSONException("Unknown keyword begining tru"+(char)c);
+				c = in.peek();
 				if (Character.isLetterOrDigit(c))
 					throw new IOException("Unknown keyword beginning true"+(char)c);
 				return true;
 			case 'f':
-				if ((c = r.read()) != 'a') throw new MalformedJSONException("Unknown keyword begining f"+(char)c);
-				if ((c = r.read()) != 'l') throw new MalformedJSONException("Unknown keyword begining fa"+(char)c);
-				if ((c = r.read()) != 's') throw new MalformedJSONException("Unknown keyword begining fal"+(char)c);
-				if ((c = r.read()) != 'e') throw new MalformedJSONException("Unknown keyword begining fals"+(char)c);
-				r.mark(1); c = r.read(); r.reset();
+				if ((c = in.read()) != 'a') throw new MalformedJSONException("Unknown keyword begining f"+(char)c);
+				if ((c = in.read()) != 'l') throw new MalformedJSONException("Unknown keyword begining fa"+(char)c);
+				if ((c = in.read()) != 's') throw new MalformedJSONException("Unknown keyword begining fal"+(char)c);
+				if ((c = in.read()) != 'e') throw new MalformedJSONException("Unknown keyword begining fals"+(char)c);
+				c = in.peek();
 				if (Character.isLetterOrDigit(c))
 					throw new IOException("Unknown keyword beginning false"+(char)c);
 				return false;
 			case 'n':
-				if ((c = r.read()) != 'u') throw new MalformedJSONException("Unknown keyword begining n"+(char)c);
-				if ((c = r.read()) != 'l') throw new MalformedJSONException("Unknown keyword begining nu"+(char)c);
-				if ((c = r.read()) != 'l') throw new MalformedJSONException("Unknown keyword begining nul"+(char)c);
-				r.mark(1); c = r.read(); r.reset();
+				if ((c = in.read()) != 'u') throw new MalformedJSONException("Unknown keyword begining n"+(char)c);
+				if ((c = in.read()) != 'l') throw new MalformedJSONException("Unknown keyword begining nu"+(char)c);
+				if ((c = in.read()) != 'l') throw new MalformedJSONException("Unknown keyword begining nul"+(char)c);
+				c = in.peek();
 				if (Character.isLetterOrDigit(c))
 					throw new IOException("Unknown keyword beginning null"+(char)c);
 				return null;
@@ -274,39 +342,36 @@ public class JSONParser {
 			case '0': case '1': case '2': case '3': case '4': case '5': case '6': case '7': case '8': case '9':
 				boolean isDouble = false;
 				StringBuilder sb = new StringBuilder();
-				if (c == '-') { 
-					sb.append((char)c); 
-					r.mark(1); c = r.read();
+				sb.append((char)c);
+				if (c == '-') {
+					c = in.read();
 					if (!Character.isDigit(c))
 						throw new NumberFormatException("JSON requires a digit follow a leading minus sign");
+					sb.append((char)c);
 				}
-				if (c == '0') { 
-					sb.append((char)c); 
-					r.mark(1); c = r.read();
-					if (Character.isDigit(c)) throw new NumberFormatException("JSON requires numbers not start with a 0");
-				}
+				if (c == '0' && Character.isDigit(in.peek()))
+					throw new NumberFormatException("JSON requires numbers not start with a 0");
+				c = in.peek();
 				while(Character.isDigit(c) || c == 'e' || c == 'E' || c == '.') {
+					sb.append((char)in.read());
 					if (c == 'e' || c == 'E') {
 						isDouble = true;
-						sb.append((char)c);
-						r.mark(1); c = r.read();
+						c = in.peek();
 						if (c == '+' || c == '-') {
-							sb.append((char)c);
-							r.mark(1); c = r.read();
+							sb.append((char)in.read());
+							c = in.peek();
 						}
 						if (!Character.isDigit(c))
 							throw new MalformedJSONException("JSON requires a number follow an exponent");
 					} else if (c == '.') {
 						isDouble = true;
-						sb.append((char)c);
-						r.mark(1); c = r.read();
+						c = in.peek();
 						if (!Character.isDigit(c))
 							throw new MalformedJSONException("JSON requires a number follow an solidus");
+					} else {
+						c = in.peek();
 					}
-					sb.append((char)c);
-					r.mark(1); c = r.read();
 				}
-				r.reset();
 				if (isDouble) return Double.parseDouble(sb.toString());
 				return Long.parseLong(sb.toString());
 			default:
@@ -319,6 +384,104 @@ public class JSONParser {
 		}
 	}
 
+	/**
+	 * Reads the elements of a top-level JSON list one at a time, so that a list
+	 * far larger than memory can be processed element by element. If the input
+	 * is not a list, its one value is returned as the only element.
+	 * <p>
+	 * The policy applies to lists nested inside each element; the top-level
+	 * list itself is never materialised and so is never turned into a set.
+	 * As with parse(Reader), the reader is left just past the end of the list
+	 * if it supports marks.
+	 */
+	public static class ElementReader implements Iterator<Object> {
+		private final Lexer in;
+		private final ListOrSet policy;
+		private final boolean list;
+		private int c; // the first character of the next element
+		private boolean done;
+		
+		/**
+		 * @param r The reader to parse from
+		 * @param policy Whether to convert all, most, some, or no lists inside elements into sorted sets
+		 * @throws MalformedJSONException if the input is empty or cannot be read
+		 */
+		public ElementReader(Reader r, ListOrSet policy) {
+			this.in = new Lexer(r);
+			this.policy = policy;
+			this.c = this.skipWhitespace();
+			if (c <= -1) throw new MalformedJSONException("End of input reached");
+			this.list = c == '[';
+			if (list) {
+				c = this.skipWhitespace();
+				if (c == ']') this.finish();
+			}
+		}
+		/**
+		 * @param r The reader to parse from
+		 * @throws MalformedJSONException if the input is empty or cannot be read
+		 */
+		public ElementReader(Reader r) {
+			this(r, ListOrSet.SET_NEVER);
+		}
+		
+		/// returns the next non-whitespace character, or -1 at the end of input
+		private int skipWhitespace() {
+			try {
+				return in.readSkippingWhitespace();
+			} catch (IOException e) {
+				throw new MalformedJSONException(e.getMessage(), e);
+			}
+		}
+		
+		private void finish() {
+			done = true;
+			try {
+				in.finish();
+			} catch (IOException e) {
+				throw new MalformedJSONException(e.getMessage(), e);
+			}
+		}
+		
+		/**
+		 * @return {@literal true} if the input is a JSON list; {@literal false} if it is a single value
+		 */
+		public boolean isList() {
+			return list;
+		}
+		
+		public boolean hasNext() {
+			return !done;
+		}
+		
+		/**
+		 * @return The next element: a Map&lt;String, Object&gt;, List&lt;Object&gt;, SortedSet&lt;Object&gt;, String, Long, Boolean, Double, or null
+		 * @throws MalformedJSONException if the element, or the punctuation after it, is not valid JSON
+		 */
+		public Object next() {
+			if (done) throw new NoSuchElementException();
+			Object ans = parseRest(c, in, policy);
+			if (!list) {
+				this.finish();
+				return ans;
+			}
+			c = this.skipWhitespace();
+			if (c == ']') {
+				this.finish();
+			} else if (c == ',') {
+				c = this.skipWhitespace();
+				if (c == ']') throw new MalformedJSONException("Trailing commas not allowed");
+			} else {
+				throw new MalformedJSONException("Expected , or ]");
+			}
+			return ans;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException("ElementReader is read-only");
+		}
+	}
+
 	/**
 	 * Like parse(Reader) except you can specify that some lists be returned as sorted sets instead
 	 * @param r The reader to parse from
@@ -326,12 +489,34 @@ public class JSONParser {
 	 * @return A Map&lt;String, Object&gt;, List&lt;Object&gt;, SortedSet&lt;Object&gt;, String, Long, Boolean, Double, or null
 	 */
 	public static Object parse(Reader r, ListOrSet policy) {
-		if (!r.markSupported()) r = new BufferedReader(r);
+		return parse(new Lexer(r), policy);
+	}
+
+	/// parses one value and puts the reader just past it, or where it went wrong
+	private static Object parse(Lexer in, ListOrSet policy) {
+		int c;
 		try {
-			return parseRest(r.read(), r, policy);
+			c = in.read();
 		} catch (IOException e) {
 			throw new MalformedJSONException("getting first character of value", e);
-		} 
+		}
+		Object ans;
+		try {
+			ans = parseRest(c, in, policy);
+		} catch (RuntimeException ex) {
+			try {
+				in.finish();
+			} catch (IOException e) {
+				ex.addSuppressed(e); // the parse error is the one worth reporting
+			}
+			throw ex;
+		}
+		try {
+			in.finish();
+		} catch (IOException e) {
+			throw new MalformedJSONException("restoring the reader's position", e);
+		}
+		return ans;
 	}
 	/**
 	 * Parses valid JSON and returns the resulting value.
@@ -339,8 +524,8 @@ public class JSONParser {
 	 * 
 	 * If the reader supports marks, the end position will be the character after 
 	 * the first JSON value read, or the character at which invalidity was first noticed. 
-	 * Otherwise, the end position may be arbitrarily far after that point as determined
-	 * by the default BufferedReader's buffering strategy.
+	 * Otherwise, the end position may be up to a buffer's length (8192 characters) 
+	 * after that point, since characters are read a buffer at a time.
 	 * 
 	 * @param r The reader to parse from.
 	 * @return A Map&lt;String, Object&gt;, List&lt;Object&gt;, String, Long, Boolean, Double, or null
@@ -350,25 +535,25 @@ public class JSONParser {
 		return parse(r, ListOrSet.SET_NEVER);
 	}
 	public static Object parse(String s) {
-		return parse(new StringReader(s)); 
+		return parse(new Lexer(s), ListOrSet.SET_NEVER); 
 	}
 	public static Object parse(InputStream s) {
-		return parse(new BufferedReader(new InputStreamReader(s))); 
+		return parse(new InputStreamReader(s)); 
 	}
 	public static Object parse(File s) throws FileNotFoundException {
-		return parse(new BufferedReader(new FileReader(s))); 
+		return parse(new FileReader(s)); 
 	}
 	public static Object parse(URL s) throws IOException {
 		return parse(s.openStream()); 
 	}
 	public static Object parse(String s, ListOrSet policy) {
-		return parse(new StringReader(s), policy); 
+		return parse(new Lexer(s), policy); 
 	}
 	public static Object parse(InputStream s, ListOrSet policy) {
-		return parse(new BufferedReader(new InputStreamReader(s)), policy); 
+		return parse(new InputStreamReader(s), policy); 
 	}
 	public static Object parse(File s, ListOrSet policy) throws FileNotFoundException {
-		return parse(new BufferedReader(new FileReader(s)), policy); 
+		return parse(new FileReader(s), policy); 
 	}
 	public static Object parse(URL s, ListOrSet policy) throws IOException {
 		return parse(s.openStream(), policy); 
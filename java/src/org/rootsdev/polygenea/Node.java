@@ -1,18 +1,18 @@
 package org.rootsdev.polygenea;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -63,6 +63,22 @@ public abstract class Node implements Comparable<Node> {
 
 	private UUID uuid;
 	private int height = -1; // 0 at the bottom of the DAG, increasing above that
+	private byte note; // 0 until isNote() is first computed, then 1 (false) or 2 (true)
+	private List<Node> out; // computed on first use; see out()
+
+	/// set while fromJSON builds a node whose "!uuid" it was told to trust; see validate
+	private static final ThreadLocal<Boolean> trusting = new ThreadLocal<Boolean>() {
+		protected Boolean initialValue() {
+			return Boolean.FALSE;
+		}
+	};
+
+	/// per-thread scratch space for hashable JSON; see hashedUUID()
+	private static final ThreadLocal<StringBuilder> hashing = new ThreadLocal<StringBuilder>() {
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
 
 	/**
 	 * True for nodes annotated with the @HasIdentity annotation; false
@@ -72,9 +88,7 @@ public abstract class Node implements Comparable<Node> {
 	 *         annotation; {@literal false} otherwise.
 	 */
 	final public boolean hasIdentity() {
-		for (Annotation a : this.getClass().getDeclaredAnnotations())
-			if (a.annotationType().equals(HasIdentity.class)) return true;
-		return false;
+		return NodeShape.of(this.getClass()).hasIdentity;
 	}
 
 	/**
@@ -82,14 +96,23 @@ public abstract class Node implements Comparable<Node> {
 	 * “notes”) and other nodes. Notes should not be considered as part of
 	 * conclusions.
 	 * 
+	 * <p>
+	 * Like height, this is computed the first time it is asked for and cached
+	 * thereafter, so repeated queries do not re-walk the nodes this one
+	 * depends on.
+	 * 
 	 * @return {@literal true} if this is a Note or depends on one.
 	 */
 	final public boolean isNote() {
-		if (this.getClass().equals(Note.class)) return true;
-		for (Node n : this.out()) {
-			if (n.isNote()) return true;
+		if (note == 0) {
+			boolean derived = this.getClass().equals(Note.class);
+			List<Node> refs = this.outList();
+			for (int i = 0; !derived && i < refs.size(); i += 1) {
+				if (refs.get(i).isNote()) derived = true;
+			}
+			note = derived ? (byte) 2 : (byte) 1;
 		}
-		return false;
+		return note == 2;
 	}
 
 	/**
@@ -107,11 +130,13 @@ public abstract class Node implements Comparable<Node> {
 	 */
 	public int getHeight() {
 		if (height == -1) {
-			height = 0;
-			for (Node n : this.out()) {
-				int h = n.getHeight();
-				if (h >= height) height = h + 1;
+			List<Node> refs = this.outList();
+			int tallest = 0;
+			for (int i = 0; i < refs.size(); i += 1) {
+				int h = refs.get(i).getHeight();
+				if (h >= tallest) tallest = h + 1;
 			}
+			height = tallest;
 		}
 		return this.height;
 	}
@@ -125,11 +150,27 @@ public abstract class Node implements Comparable<Node> {
 	public final UUID getUUID() {
 		if (this.uuid == null) {
 			if (this.hasIdentity()) this.uuid = UUID.randomUUID();
-			else this.uuid = UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, this.hashableJSON());
+			else this.uuid = this.hashedUUID();
 		}
 		return this.uuid;
 	}
 
+	/// the type-5 UUID of hashableJSON(), hashed from a reused builder rather than a new String
+	private UUID hashedUUID() {
+		for (int i = 0; i < this.outDegree(); i += 1)
+			this.out(i).getUUID(); // so that writing our JSON does not re-enter this method
+		StringBuilder sb = hashing.get();
+		boolean shared = sb.length() == 0;
+		if (!shared) sb = new StringBuilder(); // already in use further up this thread's stack
+		try {
+			this.toJSON(sb, false, XRefer.AS_UUID);
+			return UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, sb);
+		} finally {
+			sb.setLength(0);
+			if (shared && sb.capacity() > 1 << 16) hashing.remove(); // don't pin one huge node's worth of memory
+		}
+	}
+
 	/**
 	 * Performs any validation that the node might need. The Node class just
 	 * checks the UUID. Subclasses should override this method to perform any
@@ -153,7 +194,8 @@ public abstract class Node implements Comparable<Node> {
 					if (log != null) log.append("because !hasIdentity, uuid version should be 5 not ").append(this.uuid.version()).append("\n");
 					return false;
 				}
-				UUID correct = UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, this.hashableJSON());
+				if (trusting.get()) return true; // being loaded by a caller who vouches for the UUID
+				UUID correct = this.hashedUUID();
 				if (!this.uuid.equals(correct)) {
 					if (log != null) log.append("contents hash to ").append(correct).append(" not to ").append(this.uuid).append("\n");
 					return false;
@@ -194,22 +236,50 @@ public abstract class Node implements Comparable<Node> {
 	 *         object.
 	 */
 	protected SortedMap<String, Object> toSerialize(boolean withUUID) {
+		NodeShape shape = NodeShape.of(this.getClass());
 		SortedMap<String, Object> ans = new TreeMap<String, Object>();
-		ans.put("!class", this.getClass().getSimpleName());
+		ans.put("!class", shape.className);
 		if (withUUID) ans.put("!uuid", this.getUUID());
-		for (Field f : this.getClass().getFields()) {
-			if (Modifier.isPublic(f.getModifiers()) && Modifier.isFinal(f.getModifiers()) && !Modifier.isStatic(f.getModifiers())) {
-				try {
-					Object val = f.get(this);
-					if (val != null) ans.put(f.getName(), val);
-				} catch (IllegalAccessException e) {
-					throw new SecurityException(e);
-				}
-			}
+		for (int i = 0; i < shape.names.length; i += 1) {
+			Object val = shape.get(i, this);
+			if (val != null) ans.put(shape.names[i], val);
 		}
 		return ans;
 	}
 
+	/**
+	 * Appends the same JSON as
+	 * {@code jsonify(sb, this.toSerialize(withUUID), refs)}. Unless a subclass
+	 * overrides toSerialize, the fields are written directly in canonical
+	 * order without building the intermediate map.
+	 * 
+	 * @param sb
+	 *            The StringBuilder into which to place the JSON.
+	 * @param withUUID
+	 *            Only invokes .getUUID() and includes "!uuid" if this is true.
+	 * @param refs
+	 *            How to represent the nodes this node refers to.
+	 */
+	public final void toJSON(StringBuilder sb, boolean withUUID, XRefer refs) {
+		NodeShape shape = NodeShape.of(this.getClass());
+		if (shape.custom) {
+			jsonify(sb, this.toSerialize(withUUID), refs);
+			return;
+		}
+		sb.append(shape.header);
+		if (withUUID) {
+			sb.append(",\"!uuid\":");
+			jsonify(sb, this.getUUID(), refs);
+		}
+		for (int i = 0; i < shape.names.length; i += 1) {
+			Object val = shape.get(i, this);
+			if (val == null) continue;
+			sb.append(',').append(shape.keys[i]);
+			jsonify(sb, val, refs);
+		}
+		sb.append('}');
+	}
+
 	/**
 	 * Creates a SortedMap version of this node, suitable for JSON serialisation
 	 * in canonical form (hence Sorted). If subclasses override toSerialize,
@@ -281,12 +351,12 @@ public abstract class Node implements Comparable<Node> {
 		};
 		public static final XRefer HASHABLE = new XRefer() {
 			public void encode(StringBuilder sb, Node j) {
-				jsonify(sb, j.toSerialize(false), AS_UUID);
+				j.toJSON(sb, false, AS_UUID);
 			}
 		};
 		public static final XRefer STANDALONE = new XRefer() {
 			public void encode(StringBuilder sb, Node j) {
-				jsonify(sb, j.toSerialize(true), AS_UUID);
+				j.toJSON(sb, true, AS_UUID);
 			}
 		};
 
@@ -311,7 +381,7 @@ public abstract class Node implements Comparable<Node> {
 			}
 
 			public void encode(StringBuilder sb, Node j) {
-				jsonify(sb, j.toSerialize(j.hasIdentity()), internal);
+				j.toJSON(sb, j.hasIdentity(), internal);
 			}
 		}
 	}
@@ -329,8 +399,31 @@ public abstract class Node implements Comparable<Node> {
 	 * @return A JSON list of JSON objects.
 	 */
 	public static String compressedJSON(Node... nodes) {
+		StringWriter out = new StringWriter();
+		try {
+			compressedJSON(out, nodes);
+		} catch (IOException ex) {
+			throw new AssertionError("StringWriter threw " + ex);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes the same JSON list as {@link #compressedJSON(Node...)} to a
+	 * Writer, one node at a time, so that the full text is never held in
+	 * memory. The writer is not flushed or closed.
+	 * 
+	 * @param out
+	 *            Where to write the JSON list.
+	 * @param nodes
+	 *            The nodes to represent in a JSON list. This array is sorted
+	 *            in place.
+	 * @throws IOException
+	 *             if out throws one
+	 */
+	public static void compressedJSON(Writer out, Node... nodes) throws IOException {
 		StringBuilder sb = new StringBuilder();
-		Map<UUID, Integer> indices = new TreeMap<UUID, Integer>();
+		Map<UUID, Integer> indices = new HashMap<UUID, Integer>(nodes.length * 2);
 		Arrays.sort(nodes, new Comparator<Node>() {
 			public int compare(Node a, Node b) {
 				int ah = a.getHeight();
@@ -340,16 +433,18 @@ public abstract class Node implements Comparable<Node> {
 			}
 		});
 		XRefer x = new XRefer.Compressor(indices);
-		sb.append('[');
+		out.write('[');
 		boolean comma = false;
 		for (Node node : nodes) {
 			if (indices.containsKey(node.getUUID())) throw new IllegalArgumentException("Can't have node " + node.getUUID() + " more than once.");
+			sb.setLength(0);
 			if (comma) sb.append("\n,");
 			jsonify(sb, node, x);
+			out.append(sb);
 			indices.put(node.getUUID(), indices.size());
 			comma = true;
 		}
-		return sb.append("\n]").toString();
+		out.write("\n]");
 	}
 
 	/**
@@ -469,6 +564,25 @@ public abstract class Node implements Comparable<Node> {
 	 *             corrupted or incomplete.
 	 */
 	public static Node fromJSON(SortedMap<String, Object> sm, NodeLookup nodes) {
+		return fromJSON(sm, nodes, false);
+	}
+
+	/**
+	 * As {@link #fromJSON(SortedMap, NodeLookup)}, but optionally trusts the
+	 * "!uuid" field of nodes without identity instead of re-hashing their
+	 * contents to check it. Only suitable for data this system wrote itself;
+	 * a node loaded this way can be checked later with {@link #validate()}.
+	 * 
+	 * @param sm
+	 *            The parsed JSON containing a single node,
+	 * @param nodes
+	 *            A place to look up nodes referenced by index or UUID.
+	 * @param trustUUID
+	 *            If {@literal true}, a "!uuid" field is assumed to match the
+	 *            node's contents.
+	 * @return A Node subclass representation of the provided map.
+	 */
+	static Node fromJSON(SortedMap<String, Object> sm, NodeLookup nodes, boolean trustUUID) {
 		if (!sm.containsKey("!class")) throw new JSONParser.MalformedJSONException("Node JSON must contain key \"!class\"");
 		Object cls = sm.get("!class");
 		if (!(cls instanceof String)) throw new JSONParser.MalformedJSONException("key \"!class\" must have a String value");
@@ -478,7 +592,14 @@ public abstract class Node implements Comparable<Node> {
 			Class<?> c = Class.forName(Node.class.getCanonicalName().replace(Node.class.getSimpleName(), "nodes." + scls));
 			if (!(Node.class.isAssignableFrom(c))) throw new JSONParser.MalformedJSONException("The class " + scls + " is not a polygenea node type");
 			Constructor<?> maker = c.getConstructor(SortedMap.class, NodeLookup.class);
-			Object o = maker.newInstance(sm, nodes);
+			Boolean wasTrusting = trusting.get();
+			trusting.set(trustUUID && sm.containsKey("!uuid"));
+			Object o;
+			try {
+				o = maker.newInstance(sm, nodes);
+			} finally {
+				trusting.set(wasTrusting);
+			}
 			Node n = (Node) o;
 			if (sm.containsKey("!uuid") && !n.getUUID().toString().equals(sm.get("!uuid"))) throw new IllegalArgumentException("JSON had " + sm.get("!uuid") + " but data suggested " + n.getUUID() + " instead");
 			return n;
@@ -566,39 +687,119 @@ public abstract class Node implements Comparable<Node> {
 	 *         nodes with no references. May repeat some Nodes.
 	 */
 	public Collection<Node> dependsOn() {
-		return dependsOn(true);
+		List<Node> list = new ArrayList<Node>();
+		this.dependsOnHelper(list);
+		return list;
 	}
 
 	/**
+	 * The list is computed the first time it is needed and shared thereafter;
+	 * it cannot be modified. Use {@link #outDegree()} and {@link #out(int)} to
+	 * walk it without allocating an iterator.
+	 * 
 	 * @return a list of all nodes this Node references directly. May repeat
 	 *         some Nodes.
 	 */
 	public Collection<Node> out() {
-		return dependsOn(false);
+		return this.outList();
 	}
 
-	private List<Node> dependsOn(boolean recur) {
-		List<Node> list = new LinkedList<Node>();
-		this.dependsOnHelper(list, recur);
-		return list;
+	/**
+	 * @return The number of nodes this Node references directly; the size of
+	 *         out().
+	 */
+	public final int outDegree() {
+		return this.outList().size();
 	}
 
-	private void dependsOnHelper(List<Node> list, boolean recur) {
-		SortedMap<String, Object> m = this.toSerialize(false);
-		dependsOnHelper(list, m.values(), recur);
+	/**
+	 * @param i
+	 *            An index between 0 and outDegree()-1
+	 * @return The i<sup>th</sup> node this Node references directly, in the
+	 *         same order as out().
+	 */
+	public final Node out(int i) {
+		return this.outList().get(i);
 	}
 
-	private static void dependsOnHelper(List<Node> list, Iterable<? extends Object> collection, boolean recur) {
-		for (Object o : collection) {
-			if (o instanceof Node) {
-				if (recur) ((Node) o).dependsOnHelper(list, recur);
-				list.add((Node) o);
-			} else if (o instanceof Iterable<?>) {
-				dependsOnHelper(list, (Iterable<?>) o, recur);
-			} else if (o instanceof Map<?, ?>) {
-				dependsOnHelper(list, ((Map<?, ?>) o).values(), recur);
+	/// the cached out() list; the wrapper's final fields make it safe to publish without locking
+	private List<Node> outList() {
+		List<Node> ans = this.out;
+		if (ans == null) {
+			ans = Collections.unmodifiableList(Arrays.asList(this.findReferences()));
+			this.out = ans;
+		}
+		return ans;
+	}
+
+	/**
+	 * Lists the nodes this node references directly, in the order their
+	 * fields appear in canonical JSON (and, within a collection field, in the
+	 * collection's order), skipping nulls. This is called once per node, after
+	 * construction; the result backs {@link #out()}.
+	 * <p>
+	 * The default implementation finds references reflectively. Subclasses
+	 * may override it to list their references directly, typically with
+	 * {@link #nodesIn(Object...)}; an override should defer to
+	 * {@code super.findReferences()} when invoked on a further subclass that
+	 * might add fields of its own.
+	 * 
+	 * @return A new array of the nodes this node references
+	 */
+	protected Node[] findReferences() {
+		List<Node> list = new ArrayList<Node>();
+		NodeShape shape = NodeShape.of(this.getClass());
+		if (shape.custom) {
+			findReferences(list, this.toSerialize(false).values());
+		} else {
+			for (int i = 0; i < shape.names.length; i += 1) {
+				Object o = shape.get(i, this);
+				if (o instanceof Node) list.add((Node) o);
+				else if (o instanceof Iterable<?>) findReferences(list, (Iterable<?>) o);
+				else if (o instanceof Map<?, ?>) findReferences(list, ((Map<?, ?>) o).values());
 			}
 		}
+		return list.toArray(new Node[list.size()]);
+	}
+
+	private static void findReferences(List<Node> list, Iterable<? extends Object> collection) {
+		for (Object o : collection) {
+			if (o instanceof Node) list.add((Node) o);
+			else if (o instanceof Iterable<?>) findReferences(list, (Iterable<?>) o);
+			else if (o instanceof Map<?, ?>) findReferences(list, ((Map<?, ?>) o).values());
+		}
+	}
+
+	/**
+	 * A helper for implementing {@link #findReferences()}.
+	 * 
+	 * @param parts
+	 *            Nodes and collections of nodes, in the order their fields
+	 *            appear in canonical JSON. Nulls are skipped.
+	 * @return The nodes in parts, with collections flattened
+	 */
+	protected static Node[] nodesIn(Object... parts) {
+		int n = 0;
+		for (Object o : parts) {
+			if (o instanceof Node) n += 1;
+			else if (o instanceof Collection<?>) n += ((Collection<?>) o).size();
+		}
+		Node[] ans = new Node[n];
+		int i = 0;
+		for (Object o : parts) {
+			if (o instanceof Node) ans[i++] = (Node) o;
+			else if (o instanceof Collection<?>) for (Object e : (Collection<?>) o)
+				ans[i++] = (Node) e;
+		}
+		return ans;
+	}
+
+	private void dependsOnHelper(List<Node> list) {
+		List<Node> refs = this.outList();
+		for (int i = 0; i < refs.size(); i += 1) {
+			refs.get(i).dependsOnHelper(list);
+			list.add(refs.get(i));
+		}
 	}
 
 	/**
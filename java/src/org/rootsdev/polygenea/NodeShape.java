@@ -0,0 +1,109 @@
+package org.rootsdev.polygenea;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The serialisable layout of one concrete Node class: its name, whether it has
+ * identity, and its public final fields in the order they appear in canonical
+ * JSON. Node used to rediscover all of this by reflection every time a node
+ * was serialised; a NodeShape is worked out once per class and shared.
+ * <p>
+ * Classes that override {@link Node#toSerialize(boolean)} are marked as
+ * custom, and callers must use the map that method returns rather than the
+ * fields listed here.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+final class NodeShape {
+	private static final ConcurrentMap<Class<?>, NodeShape> shapes = new ConcurrentHashMap<Class<?>, NodeShape>();
+
+	/** The simple class name, as used in "!class". */
+	final String className;
+	/** {@literal true} if the class is annotated with @HasIdentity. */
+	final boolean hasIdentity;
+	/** {@literal true} if the class overrides toSerialize. */
+	final boolean custom;
+	/** The start of the class's JSON: an open brace and the "!class" entry. */
+	final String header;
+	/** The serialised fields, sorted by name. */
+	final String[] names;
+	/** The JSON key (quoted name and colon) of each field in names. */
+	final String[] keys;
+	private final Field[] fields;
+
+	private NodeShape(Class<?> c) {
+		this.className = c.getSimpleName();
+		boolean identity = false;
+		for (Annotation a : c.getDeclaredAnnotations())
+			if (a.annotationType().equals(HasIdentity.class)) identity = true;
+		this.hasIdentity = identity;
+		boolean overrides = false;
+		for (Class<?> k = c; k != Node.class && k != null; k = k.getSuperclass()) {
+			try {
+				k.getDeclaredMethod("toSerialize", boolean.class);
+				overrides = true;
+				break;
+			} catch (NoSuchMethodException ex) {}
+		}
+		this.custom = overrides;
+
+		Field[] all = c.getFields();
+		int n = 0;
+		for (Field f : all)
+			if (Modifier.isPublic(f.getModifiers()) && Modifier.isFinal(f.getModifiers()) && !Modifier.isStatic(f.getModifiers())) all[n++] = f;
+		this.fields = Arrays.copyOf(all, n);
+		Arrays.sort(fields, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		this.names = new String[n];
+		this.keys = new String[n];
+		for (int i = 0; i < n; i += 1) {
+			names[i] = fields[i].getName();
+			StringBuilder sb = new StringBuilder();
+			Node.jsonify(sb, names[i], null);
+			keys[i] = sb.append(':').toString();
+		}
+		StringBuilder sb = new StringBuilder("{\"!class\":");
+		Node.jsonify(sb, className, null);
+		this.header = sb.toString();
+	}
+
+	/**
+	 * @param c
+	 *            A Node class
+	 * @return The shape of that class, computed on first use.
+	 */
+	static NodeShape of(Class<?> c) {
+		NodeShape s = shapes.get(c);
+		if (s == null) {
+			s = new NodeShape(c);
+			NodeShape race = shapes.putIfAbsent(c, s);
+			if (race != null) s = race;
+		}
+		return s;
+	}
+
+	/**
+	 * @param i
+	 *            An index into names
+	 * @param n
+	 *            A node of this shape's class
+	 * @return The value of field i of n (possibly null)
+	 */
+	Object get(int i, Node n) {
+		try {
+			return fields[i].get(n);
+		} catch (IllegalAccessException e) {
+			throw new SecurityException(e);
+		}
+	}
+}
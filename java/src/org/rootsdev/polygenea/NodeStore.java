@@ -0,0 +1,311 @@
+package org.rootsdev.polygenea;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * A NodeStore is an append-only log of serialised nodes kept in a directory on
+ * disk. Because nodes are immutable, a node is written exactly once and never
+ * rewritten; the log is split into segment files so that no single file grows
+ * without bound.
+ * <p>
+ * Each record begins with a small header containing the node's UUID, class
+ * name, and the UUIDs of the nodes it references, followed by the node's
+ * stand-alone JSON. The header lets a {@link Database} rebuild its indices by
+ * scanning the log without parsing any JSON; the JSON itself is only read when
+ * a node is actually needed.
+ * <p>
+ * Record positions are encoded as a single long: the segment number in the
+ * high 32 bits and the byte offset within that segment in the low 32 bits.
+ * <p>
+ * Several threads may call {@link #readJSON(long)} at once, as long as no
+ * thread is appending meanwhile.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class NodeStore implements Closeable {
+	/** Segments are rolled over once they would grow past this many bytes. */
+	public static final long SEGMENT_SIZE = 1L << 30;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private final File directory;
+	private final List<FileChannel> segments = new ArrayList<FileChannel>();
+	private long tailSize; // bytes in the tail segment, including unflushed ones
+	private long tailFlushed; // bytes in the tail segment already handed to the OS
+	private ByteBuffer pending = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	/**
+	 * Receives the header of each record during a {@link NodeStore#scan}.
+	 */
+	public static interface Visitor {
+		/**
+		 * Called once per record, in the order the records were appended.
+		 *
+		 * @param position
+		 *            Where the record lives; suitable for passing to
+		 *            {@link NodeStore#readJSON(long)}
+		 * @param uuid
+		 *            The UUID of the stored node
+		 * @param className
+		 *            The simple class name of the stored node
+		 * @param references
+		 *            The UUIDs of the nodes the stored node references
+		 */
+		public void visit(long position, UUID uuid, String className, UUID[] references);
+	}
+
+	/**
+	 * Opens (or creates) a store in the given directory.
+	 *
+	 * @param directory
+	 *            Where the segment files live. Created if it does not exist.
+	 * @throws IOException
+	 *             if the directory cannot be created or a segment cannot be
+	 *             opened
+	 */
+	public NodeStore(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create directory " + directory);
+		for (int i = 0; segmentFile(i).exists(); i += 1)
+			segments.add(new RandomAccessFile(segmentFile(i), "rw").getChannel());
+		if (segments.isEmpty()) segments.add(new RandomAccessFile(segmentFile(0), "rw").getChannel());
+		this.tailSize = this.tailFlushed = segments.get(segments.size() - 1).size();
+	}
+
+	/**
+	 * @return The directory this store keeps its segments in.
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	private File segmentFile(int i) {
+		return new File(directory, String.format("nodes-%05d.log", i));
+	}
+
+	/**
+	 * Appends a node to the end of the log. Callers are responsible for
+	 * appending nodes after the nodes they reference; the store itself does not
+	 * check this.
+	 *
+	 * @param n
+	 *            The node to store
+	 * @return The position of the new record
+	 * @throws IOException
+	 *             if the record cannot be written
+	 */
+	public long append(Node n) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		UUID u = n.getUUID();
+		out.writeLong(u.getMostSignificantBits());
+		out.writeLong(u.getLeastSignificantBits());
+		out.writeUTF(n.getClass().getSimpleName());
+		out.writeInt(n.outDegree());
+		for (int i = 0; i < n.outDegree(); i += 1) {
+			Node r = n.out(i);
+			out.writeLong(r.getUUID().getMostSignificantBits());
+			out.writeLong(r.getUUID().getLeastSignificantBits());
+		}
+		byte[] json = n.toString().getBytes(UTF8);
+		out.writeInt(json.length);
+		out.write(json);
+		out.flush();
+		byte[] body = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		int length = body.length + 8;
+		if (tailSize > 0 && tailSize + length > SEGMENT_SIZE) {
+			this.flushBuffer();
+			segments.add(new RandomAccessFile(segmentFile(segments.size()), "rw").getChannel());
+			tailSize = tailFlushed = 0;
+		}
+		long position = ((long) (segments.size() - 1) << 32) | tailSize;
+		if (pending.remaining() < length) {
+			this.flushBuffer();
+			if (pending.capacity() < length) pending = ByteBuffer.allocate(length);
+		}
+		pending.putInt(body.length);
+		pending.putInt((int) crc.getValue());
+		pending.put(body);
+		tailSize += length;
+		return position;
+	}
+
+	private synchronized void flushBuffer() throws IOException { // readers may flush while others read
+		if (pending.position() == 0) return;
+		pending.flip();
+		FileChannel tail = segments.get(segments.size() - 1);
+		while (pending.hasRemaining())
+			tailFlushed += tail.write(pending, tailFlushed);
+		pending.clear();
+	}
+
+	/**
+	 * Writes any buffered records and forces them to the storage device.
+	 *
+	 * @throws IOException
+	 *             if the records cannot be written
+	 */
+	public void flush() throws IOException {
+		this.flushBuffer();
+		segments.get(segments.size() - 1).force(false);
+	}
+
+	/**
+	 * Retrieves the stand-alone JSON of the node stored at a given position.
+	 *
+	 * @param position
+	 *            A position returned by append or passed to a Visitor
+	 * @return The JSON originally produced by the node's toString method
+	 * @throws IOException
+	 *             if the record cannot be read or is corrupt
+	 */
+	public String readJSON(long position) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(this.readBody(position)));
+		in.skipBytes(16);
+		in.readUTF();
+		in.skipBytes(16 * in.readInt());
+		byte[] json = new byte[in.readInt()];
+		in.readFully(json);
+		return new String(json, UTF8);
+	}
+
+	/**
+	 * Retrieves the UUIDs of the nodes that the node stored at a given
+	 * position references, as recorded in its header, without reading its
+	 * JSON.
+	 *
+	 * @param position
+	 *            A position returned by append or passed to a Visitor
+	 * @return The UUIDs of the nodes the stored node references
+	 * @throws IOException
+	 *             if the record cannot be read or is corrupt
+	 */
+	public UUID[] readReferences(long position) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(this.readBody(position)));
+		in.skipBytes(16);
+		in.readUTF();
+		UUID[] refs = new UUID[in.readInt()];
+		for (int i = 0; i < refs.length; i += 1)
+			refs[i] = new UUID(in.readLong(), in.readLong());
+		return refs;
+	}
+
+	private byte[] readBody(long position) throws IOException {
+		int segment = (int) (position >>> 32);
+		long offset = position & 0xffffffffL;
+		if (segment < 0 || segment >= segments.size()) throw new IOException("No segment " + segment + " in " + directory);
+		if (segment == segments.size() - 1 && offset >= tailFlushed) this.flushBuffer();
+		FileChannel ch = segments.get(segment);
+		ByteBuffer head = ByteBuffer.allocate(8);
+		readFully(ch, head, offset);
+		head.flip();
+		int length = head.getInt();
+		int crc = head.getInt();
+		if (length < 0 || offset + 8 + length > ch.size()) throw new IOException("Corrupt record length at " + Long.toHexString(position));
+		ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(ch, body, offset + 8);
+		CRC32 check = new CRC32();
+		check.update(body.array());
+		if ((int) check.getValue() != crc) throw new IOException("Checksum mismatch for record at " + Long.toHexString(position));
+		return body.array();
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+		while (buf.hasRemaining()) {
+			int got = ch.read(buf, offset);
+			if (got < 0) throw new EOFException("Record extends past end of segment");
+			offset += got;
+		}
+	}
+
+	/**
+	 * Visits the header of every record in the log, in append order, without
+	 * reading any JSON. Records in the last segment are checksummed; if the
+	 * log ends in a partially-written record (e.g., after a crash) that record
+	 * is discarded and the segment truncated so future appends follow the last
+	 * good record.
+	 *
+	 * @param v
+	 *            Receives each record header
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	public void scan(Visitor v) throws IOException {
+		this.flushBuffer();
+		for (int s = 0; s < segments.size(); s += 1) {
+			boolean last = s == segments.size() - 1;
+			long size = segments.get(s).size();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(s)), 1 << 16));
+			long offset = 0;
+			try {
+				while (offset + 8 <= size) {
+					int length = in.readInt();
+					int crc = in.readInt();
+					if (length < 0 || offset + 8 + length > size) break;
+					long position = ((long) s << 32) | offset;
+					if (last) {
+						byte[] body = new byte[length];
+						in.readFully(body);
+						CRC32 check = new CRC32();
+						check.update(body);
+						if ((int) check.getValue() != crc) break;
+						visitHeader(new DataInputStream(new ByteArrayInputStream(body)), position, v);
+					} else {
+						int used = visitHeader(in, position, v);
+						in.skipBytes(length - used);
+					}
+					offset += 8 + length;
+				}
+			} finally {
+				in.close();
+			}
+			if (offset != size) {
+				if (!last) throw new IOException("Segment " + segmentFile(s) + " is corrupt at offset " + offset);
+				segments.get(s).truncate(offset);
+				tailSize = tailFlushed = offset;
+			}
+		}
+	}
+
+	/// reads one header, hands it to v, and returns the number of bytes consumed
+	private static int visitHeader(DataInputStream in, long position, Visitor v) throws IOException {
+		UUID u = new UUID(in.readLong(), in.readLong());
+		String cls = in.readUTF();
+		UUID[] refs = new UUID[in.readInt()];
+		for (int i = 0; i < refs.length; i += 1)
+			refs[i] = new UUID(in.readLong(), in.readLong());
+		v.visit(position, u, cls, refs);
+		return 16 + 2 + cls.getBytes(UTF8).length + 4 + 16 * refs.length;
+	}
+
+	/**
+	 * Flushes and closes every segment.
+	 */
+	public void close() throws IOException {
+		this.flush();
+		for (FileChannel ch : segments)
+			ch.close();
+	}
+}
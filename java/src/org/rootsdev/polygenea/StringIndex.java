@@ -0,0 +1,106 @@
+package org.rootsdev.polygenea;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An ordered index from strings to the ids of the nodes that have them, used
+ * by {@link Database} for searchable string fields such as Property values and
+ * Connection relations. Strings are kept in a sorted map, so besides exact
+ * matches it can find every id whose string has a given prefix or lies in a
+ * given range. Each string's ids are kept in a growable int array.
+ * <p>
+ * Ids must be added in increasing order; every lookup then returns its ids in
+ * increasing order too.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+class StringIndex {
+	private static final int[] NONE = new int[0];
+
+	private final TreeMap<String, Ids> map = new TreeMap<String, Ids>();
+
+	/// the ids of the nodes with one string, in increasing order
+	private static class Ids {
+		int[] ids = new int[2];
+		int size;
+	}
+
+	/**
+	 * Records that a node has a string.
+	 *
+	 * @param s
+	 *            The string
+	 * @param id
+	 *            The node's id, which must be larger than any id added before
+	 */
+	void add(String s, int id) {
+		Ids ids = map.get(s);
+		if (ids == null) map.put(s, ids = new Ids());
+		if (ids.size == ids.ids.length) ids.ids = Arrays.copyOf(ids.ids, ids.size * 2);
+		ids.ids[ids.size++] = id;
+	}
+
+	/**
+	 * @param s
+	 *            A string
+	 * @return The ids of the nodes with exactly that string.
+	 */
+	int[] exact(String s) {
+		Ids ids = map.get(s);
+		return ids == null ? NONE : Arrays.copyOf(ids.ids, ids.size);
+	}
+
+	/**
+	 * @param prefix
+	 *            The start of a string
+	 * @return The ids of the nodes whose strings start with prefix.
+	 */
+	int[] prefix(String prefix) {
+		SortedMap<String, Ids> tail = map.tailMap(prefix);
+		int n = 0;
+		for (Map.Entry<String, Ids> e : tail.entrySet()) {
+			if (!e.getKey().startsWith(prefix)) break;
+			n += e.getValue().size;
+		}
+		int[] ans = new int[n];
+		n = 0;
+		for (Map.Entry<String, Ids> e : tail.entrySet()) {
+			if (n == ans.length) break;
+			System.arraycopy(e.getValue().ids, 0, ans, n, e.getValue().size);
+			n += e.getValue().size;
+		}
+		Arrays.sort(ans);
+		return ans;
+	}
+
+	/**
+	 * @param from
+	 *            The smallest string to include, or null for no lower bound
+	 * @param to
+	 *            The string to stop before, or null for no upper bound
+	 * @return The ids of the nodes whose strings s have from &le; s &lt; to.
+	 */
+	int[] range(String from, String to) {
+		SortedMap<String, Ids> sub;
+		if (from == null && to == null) sub = map;
+		else if (from == null) sub = map.headMap(to);
+		else if (to == null) sub = map.tailMap(from);
+		else if (from.compareTo(to) >= 0) return NONE;
+		else sub = map.subMap(from, to);
+		int n = 0;
+		for (Ids ids : sub.values())
+			n += ids.size;
+		int[] ans = new int[n];
+		n = 0;
+		for (Ids ids : sub.values()) {
+			System.arraycopy(ids.ids, 0, ans, n, ids.size);
+			n += ids.size;
+		}
+		Arrays.sort(ans);
+		return ans;
+	}
+}
@@ -0,0 +1,488 @@
+package org.rootsdev.polygenea;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An inverted index over the text of nodes, identified by their dense
+ * {@link Database} ids, used to find the sources that mention a word or
+ * phrase without reading every source.
+ * <p>
+ * Text is split into tokens at every character that is not a letter or digit,
+ * and tokens are lower-cased. Each distinct token (term) has a postings list:
+ * a byte array holding, for every node containing the term in increasing id
+ * order, the gap from the previous id, the number of occurrences, and the gaps
+ * between successive positions of the term in the node's text, all as
+ * variable-length integers. Most gaps fit in a single byte. Terms are kept
+ * in a sorted map so that every term with a given prefix can be found.
+ * <p>
+ * Queries (see {@link #search(String, int)}) are a conjunction of words,
+ * quoted phrases and prefixes ({@code smit*}). Matches are ranked using BM25,
+ * so rarer terms and shorter texts count for more.
+ * <p>
+ * Nodes must be added in increasing id order. The index can be written to and
+ * read back from a file.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+class TextIndex {
+	private static final int MAGIC = 0x50475458; // "PGTX"
+	private static final int VERSION = 1;
+	private static final double K1 = 1.2, B = 0.75; // BM25 parameters
+	private static final int MAX_TOKEN = 64; // longer tokens (e.g., encoded data) are truncated
+
+	private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+	private int[] lengths = new int[16]; // id -> number of tokens in that node's text
+	private int docs; // nodes with at least one token
+	private long totalLength; // tokens in all nodes
+	private int upTo; // every node with a smaller id has been added (or had no text)
+	private boolean dirty; // changed since last read or written
+
+	/// the encoded occurrences of one term
+	private static class Postings {
+		byte[] data = new byte[8];
+		int size;
+		int docFreq;
+		int lastId = -1;
+
+		void write(int v) {
+			if (size + 5 > data.length) data = Arrays.copyOf(data, Math.max(size + 5, data.length * 2));
+			while ((v & ~0x7f) != 0) {
+				data[size++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			data[size++] = (byte) v;
+		}
+	}
+
+	/// reads variable-length integers from a Postings
+	private static class Reader {
+		final byte[] data;
+		final int end;
+		int at;
+
+		Reader(Postings p) {
+			this.data = p.data;
+			this.end = p.size;
+		}
+
+		boolean hasNext() {
+			return at < end;
+		}
+
+		int read() {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = data[at++];
+				v |= (b & 0x7f) << shift;
+				if (b >= 0) return v;
+			}
+		}
+	}
+
+	/**
+	 * @return One more than the largest id added; every smaller id has been
+	 *         added or skipped.
+	 */
+	int upTo() {
+		return upTo;
+	}
+
+	/**
+	 * @return {@literal true} if the index has changed since it was last read
+	 *         or written.
+	 */
+	boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Indexes the text of a node.
+	 *
+	 * @param id
+	 *            The node's id, which must be at least {@link #upTo()}
+	 * @param texts
+	 *            The node's text fields; phrases do not match across the
+	 *            end of one and the start of the next. Null entries are
+	 *            ignored.
+	 */
+	void add(int id, List<String> texts) {
+		if (id < upTo) throw new IllegalArgumentException("Text of node " + id + " is already indexed");
+		upTo = id + 1;
+		TreeMap<String, int[]> positions = new TreeMap<String, int[]>(); // term -> count, then positions
+		int position = 0;
+		for (String text : texts) {
+			if (text == null) continue;
+			for (String token : tokenize(text)) {
+				int[] ps = positions.get(token);
+				if (ps == null) positions.put(token, ps = new int[4]);
+				if (ps[0] + 1 == ps.length) positions.put(token, ps = Arrays.copyOf(ps, ps.length * 2));
+				ps[++ps[0]] = position++;
+			}
+			position += 1; // a gap, so phrases cannot span two fields
+		}
+		if (positions.isEmpty()) return;
+		if (id >= lengths.length) lengths = Arrays.copyOf(lengths, Math.max(id + 1, lengths.length * 2));
+		for (Map.Entry<String, int[]> e : positions.entrySet()) {
+			Postings p = terms.get(e.getKey());
+			if (p == null) terms.put(e.getKey(), p = new Postings());
+			int[] ps = e.getValue();
+			p.write(id - p.lastId - 1);
+			p.write(ps[0]);
+			for (int i = 1; i <= ps[0]; i += 1)
+				p.write(i == 1 ? ps[i] : ps[i] - ps[i - 1]);
+			p.lastId = id;
+			p.docFreq += 1;
+			lengths[id] += ps[0];
+		}
+		docs += 1;
+		totalLength += lengths[id];
+		dirty = true;
+	}
+
+	/**
+	 * Records that every node with an id smaller than upTo has been added, for
+	 * nodes that have no text.
+	 *
+	 * @param upTo
+	 *            One more than the last id with no text
+	 */
+	void skipTo(int upTo) {
+		if (upTo > this.upTo) {
+			this.upTo = upTo;
+			dirty = true;
+		}
+	}
+
+	/// lower-cased runs of letters and digits, each truncated to MAX_TOKEN characters
+	static List<String> tokenize(String text) {
+		List<String> ans = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i <= text.length(); i += 1) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (sb.length() < MAX_TOKEN) sb.append(Character.toLowerCase(c));
+			} else if (sb.length() > 0) {
+				ans.add(sb.toString());
+				sb.setLength(0);
+			}
+		}
+		return ans;
+	}
+
+	/// the nodes matching one part of a query: increasing ids and the number of matches in each
+	private static class Hits {
+		int[] ids;
+		int[] counts;
+		int size;
+
+		Hits(int capacity) {
+			ids = new int[capacity];
+			counts = new int[capacity];
+		}
+
+		void add(int id, int count) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+				counts = Arrays.copyOf(counts, ids.length);
+			}
+			ids[size] = id;
+			counts[size++] = count;
+		}
+
+		/// the index of id in ids, or a negative number
+		int find(int id) {
+			return Arrays.binarySearch(ids, 0, size, id);
+		}
+	}
+
+	/// the ids, counts and positions of a single term
+	private static class Occurrences {
+		final Hits hits;
+		final int[] start; // positions of hits.ids[i] are positions[start[i]..start[i+1]-1]
+		final int[] positions;
+
+		Occurrences(Postings p) {
+			hits = new Hits(p == null ? 0 : p.docFreq);
+			start = new int[hits.ids.length + 1];
+			int total = 0;
+			List<int[]> chunks = new ArrayList<int[]>();
+			if (p != null) {
+				Reader r = new Reader(p);
+				int id = -1;
+				while (r.hasNext()) {
+					id += r.read() + 1;
+					int tf = r.read();
+					int[] ps = new int[tf];
+					int pos = 0;
+					for (int i = 0; i < tf; i += 1)
+						ps[i] = pos = (i == 0 ? r.read() : pos + r.read());
+					start[hits.size] = total;
+					hits.add(id, tf);
+					chunks.add(ps);
+					total += tf;
+				}
+			}
+			start[hits.size] = total;
+			positions = new int[total];
+			int at = 0;
+			for (int[] ps : chunks) {
+				System.arraycopy(ps, 0, positions, at, ps.length);
+				at += ps.length;
+			}
+		}
+
+		/// true if position pos of the node at hits index i has this term
+		boolean has(int i, int pos) {
+			return Arrays.binarySearch(positions, start[i], start[i + 1], pos) >= 0;
+		}
+	}
+
+	/// every node containing the words in order; a single word is a one-word phrase
+	private Hits phrase(List<String> words) {
+		Occurrences[] occ = new Occurrences[words.size()];
+		for (int i = 0; i < occ.length; i += 1)
+			occ[i] = new Occurrences(terms.get(words.get(i)));
+		Hits first = occ[0].hits;
+		if (occ.length == 1) return first;
+		Hits ans = new Hits(first.size);
+		int[] at = new int[occ.length];
+		for (int d = 0; d < first.size; d += 1) {
+			int id = first.ids[d];
+			boolean all = true;
+			for (int k = 1; k < occ.length && all; k += 1) {
+				at[k] = occ[k].hits.find(id);
+				all = at[k] >= 0;
+			}
+			if (!all) continue;
+			int count = 0;
+			for (int p = occ[0].start[d]; p < occ[0].start[d + 1]; p += 1) {
+				int pos = occ[0].positions[p];
+				boolean match = true;
+				for (int k = 1; k < occ.length && match; k += 1)
+					match = occ[k].has(at[k], pos + k);
+				if (match) count += 1;
+			}
+			if (count > 0) ans.add(id, count);
+		}
+		return ans;
+	}
+
+	/// every node containing a term that starts with prefix, counting all such terms
+	private Hits prefix(String prefix) {
+		long[] pairs = new long[16];
+		int n = 0;
+		SortedMap<String, Postings> tail = terms.tailMap(prefix);
+		for (Map.Entry<String, Postings> e : tail.entrySet()) {
+			if (!e.getKey().startsWith(prefix)) break;
+			Reader r = new Reader(e.getValue());
+			int id = -1;
+			while (r.hasNext()) {
+				id += r.read() + 1;
+				int tf = r.read();
+				for (int i = 0; i < tf; i += 1)
+					r.read();
+				if (n == pairs.length) pairs = Arrays.copyOf(pairs, n * 2);
+				pairs[n++] = ((long) id << 32) | tf;
+			}
+		}
+		Arrays.sort(pairs, 0, n);
+		Hits ans = new Hits(n);
+		for (int i = 0; i < n; i += 1) {
+			int id = (int) (pairs[i] >>> 32);
+			int tf = (int) pairs[i];
+			if (ans.size > 0 && ans.ids[ans.size - 1] == id) ans.counts[ans.size - 1] += tf;
+			else ans.add(id, tf);
+		}
+		return ans;
+	}
+
+	/**
+	 * Finds the nodes whose text matches every part of a query, best first.
+	 * A query is made of whitespace-separated parts, each of which is
+	 * <ul>
+	 * <li>a word, matching text containing that word;
+	 * <li>a word followed by {@code *}, matching text containing any word
+	 * that starts with it; or
+	 * <li>several words in double quotes, matching text containing those
+	 * words in that order.
+	 * </ul>
+	 * Case and punctuation are ignored, as they are when text is indexed.
+	 *
+	 * @param query
+	 *            What to look for
+	 * @param limit
+	 *            The most ids to return
+	 * @return The ids of the matching nodes, best match first.
+	 */
+	int[] search(String query, int limit) {
+		List<Hits> parts = new ArrayList<Hits>();
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i += 1;
+			} else if (c == '"') {
+				int close = query.indexOf('"', i + 1);
+				if (close < 0) close = query.length();
+				List<String> words = tokenize(query.substring(i + 1, close));
+				if (!words.isEmpty()) parts.add(this.phrase(words));
+				i = close + 1;
+			} else {
+				int end = i;
+				while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"')
+					end += 1;
+				String part = query.substring(i, end);
+				List<String> words = tokenize(part);
+				if (part.endsWith("*") && words.size() == 1) parts.add(this.prefix(words.get(0)));
+				else if (!words.isEmpty()) parts.add(this.phrase(words)); // e.g. o'brien
+				i = end;
+			}
+		}
+		if (parts.isEmpty() || limit <= 0) return new int[0];
+
+		Hits smallest = parts.get(0);
+		for (Hits h : parts)
+			if (h.size < smallest.size) smallest = h;
+		double[] idf = new double[parts.size()];
+		for (int p = 0; p < idf.length; p += 1)
+			idf[p] = Math.log(1 + (docs - parts.get(p).size + 0.5) / (parts.get(p).size + 0.5));
+		double avgLength = docs == 0 ? 1 : (double) totalLength / docs;
+
+		final int[] found = new int[smallest.size];
+		final double[] score = new double[smallest.size];
+		int n = 0;
+		for (int d = 0; d < smallest.size; d += 1) {
+			int id = smallest.ids[d];
+			double s = 0;
+			boolean all = true;
+			for (int p = 0; p < idf.length && all; p += 1) {
+				Hits h = parts.get(p);
+				int at = h == smallest ? d : h.find(id);
+				if (at < 0) {
+					all = false;
+				} else {
+					double tf = h.counts[at];
+					s += idf[p] * tf * (K1 + 1) / (tf + K1 * (1 - B + B * lengths[id] / avgLength));
+				}
+			}
+			if (all) {
+				found[n] = id;
+				score[n++] = s;
+			}
+		}
+		Integer[] order = new Integer[n];
+		for (int k = 0; k < n; k += 1)
+			order[k] = k;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(score[b], score[a]);
+				return c != 0 ? c : found[a] - found[b];
+			}
+		});
+		int[] ans = new int[Math.min(n, limit)];
+		for (int k = 0; k < ans.length; k += 1)
+			ans[k] = found[order[k]];
+		return ans;
+	}
+
+	/**
+	 * Writes the index to a file, replacing it atomically.
+	 *
+	 * @param f
+	 *            Where to write the index
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	void write(File f) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(upTo);
+			out.writeInt(docs);
+			for (int id = 0; id < upTo && id < lengths.length; id += 1) {
+				if (lengths[id] == 0) continue;
+				out.writeInt(id);
+				out.writeInt(lengths[id]);
+			}
+			out.writeInt(terms.size());
+			for (Map.Entry<String, Postings> e : terms.entrySet()) {
+				Postings p = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeInt(p.docFreq);
+				out.writeInt(p.lastId);
+				out.writeInt(p.size);
+				out.write(p.data, 0, p.size);
+			}
+		} finally {
+			out.close();
+		}
+		if (f.exists() && !f.delete()) throw new IOException("Unable to replace " + f);
+		if (!tmp.renameTo(f)) throw new IOException("Unable to replace " + f);
+		dirty = false;
+	}
+
+	/**
+	 * Reads an index written by {@link #write(File)}.
+	 *
+	 * @param f
+	 *            The file to read
+	 * @param maxUpTo
+	 *            The number of nodes in the database the index belongs to;
+	 *            an index covering more nodes than that is out of date
+	 * @return The index, or null if the file does not exist, cannot be read,
+	 *         or is out of date.
+	 */
+	static TextIndex read(File f, int maxUpTo) {
+		if (!f.exists()) return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+				TextIndex ans = new TextIndex();
+				ans.upTo = in.readInt();
+				if (ans.upTo > maxUpTo) return null;
+				ans.lengths = new int[Math.max(16, ans.upTo)];
+				ans.docs = in.readInt();
+				for (int i = 0; i < ans.docs; i += 1) {
+					int id = in.readInt();
+					ans.lengths[id] = in.readInt();
+					ans.totalLength += ans.lengths[id];
+				}
+				for (int i = in.readInt(); i > 0; i -= 1) {
+					String term = in.readUTF();
+					Postings p = new Postings();
+					p.docFreq = in.readInt();
+					p.lastId = in.readInt();
+					p.size = in.readInt();
+					p.data = new byte[Math.max(8, p.size)];
+					in.readFully(p.data, 0, p.size);
+					ans.terms.put(term, p);
+				}
+				return ans;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return null;
+		} catch (RuntimeException ex) {
+			return null; // e.g., a corrupt id; the caller rebuilds the index
+		}
+	}
+}
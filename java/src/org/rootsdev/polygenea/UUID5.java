@@ -1,9 +1,9 @@
 package org.rootsdev.polygenea;
 
 import java.nio.ByteOrder;
-import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -27,6 +27,12 @@ import java.util.UUID;
  * >boost.uuid</a>; and also validated against the Python language's <a
  * href="http://docs.python.org/2/library/uuid.html">uuid</a> library.
  * 
+ * <p>
+ * Hashing is a large part of the cost of creating nodes, so each thread keeps
+ * its own SHA-1 digest and scratch buffer, and character data is encoded as
+ * UTF-8 a block at a time directly into the digest rather than first being
+ * copied into a byte array.
+ * 
  * @see java.util.UUID
  * @see java.security.MessageDigest
  * 
@@ -40,6 +46,41 @@ public class UUID5 {
 	 */
 	public static final UUID POLYGENEA_NAMESPACE = UUID.fromString("954aac7d-47b2-5975-9a80-37eeed186527");
 
+	/// a SHA-1 digest and a block of scratch bytes, one per thread
+	private static final class Hasher {
+		final MessageDigest md;
+		final byte[] buf = new byte[4096];
+
+		Hasher() {
+			try {
+				this.md = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		/// resets md and, if named, feeds it the namespace (all zeros if null)
+		MessageDigest start(boolean named, UUID namespace) {
+			md.reset();
+			if (named) {
+				if (namespace == null) {
+					Arrays.fill(buf, 0, 16, (byte) 0);
+				} else {
+					putLong(namespace.getMostSignificantBits(), buf, 0, ByteOrder.BIG_ENDIAN);
+					putLong(namespace.getLeastSignificantBits(), buf, 8, ByteOrder.BIG_ENDIAN);
+				}
+				md.update(buf, 0, 16);
+			}
+			return md;
+		}
+	}
+
+	private static final ThreadLocal<Hasher> hashers = new ThreadLocal<Hasher>() {
+		protected Hasher initialValue() {
+			return new Hasher();
+		}
+	};
+
 	/**
 	 * Similar to UUID.nameUUIDFromBytes, but does version 5 (sha-1) not version
 	 * 3 (md5)
@@ -52,12 +93,7 @@ public class UUID5 {
 		if (name == null) {
 			throw new NullPointerException("name == null");
 		}
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			return makeUUID(md.digest(name), 5);
-		} catch (NoSuchAlgorithmException e) {
-			throw new AssertionError(e);
-		}
+		return makeUUID(hashers.get().start(false, null).digest(name), 5);
 	}
 
 	/**
@@ -75,18 +111,7 @@ public class UUID5 {
 		if (name == null) {
 			throw new NullPointerException("name == null");
 		}
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			if (namespace == null) {
-				md.update(new byte[16]);
-			} else {
-				md.update(asBytes(namespace.getMostSignificantBits(), ByteOrder.BIG_ENDIAN));
-				md.update(asBytes(namespace.getLeastSignificantBits(), ByteOrder.BIG_ENDIAN));
-			}
-			return makeUUID(md.digest(name), 5);
-		} catch (NoSuchAlgorithmException e) {
-			throw new AssertionError(e);
-		}
+		return makeUUID(hashers.get().start(true, namespace).digest(name), 5);
 	}
 
 	/**
@@ -98,7 +123,7 @@ public class UUID5 {
 	 * @return the UUID object
 	 */
 	public static UUID fromUTF8(String name) {
-		return UUID5.fromBytes(name.getBytes(Charset.forName("UTF-8")));
+		return UUID5.fromUTF8(false, null, name);
 	}
 
 	/**
@@ -113,7 +138,65 @@ public class UUID5 {
 	 * @return the UUID object
 	 */
 	public static UUID fromUTF8(UUID namespace, String name) {
-		return UUID5.fromBytes(namespace, name.getBytes(Charset.forName("UTF-8")));
+		return UUID5.fromUTF8(true, namespace, name);
+	}
+
+	/**
+	 * As {@link #fromUTF8(UUID, String)}, but hashes any sequence of
+	 * characters (such as a StringBuilder) without first copying it into a
+	 * String or a byte array.
+	 * 
+	 * @param namespace
+	 *            The namespace to use for this UUID. If null, uses
+	 *            00000000-0000-0000-0000-000000000000
+	 * @param name
+	 *            The characters to be encoded in utf-8 to get the bytes to
+	 *            hash
+	 * @return the UUID object
+	 */
+	public static UUID fromUTF8(UUID namespace, CharSequence name) {
+		return UUID5.fromUTF8(true, namespace, name);
+	}
+
+	/// hashes name's UTF-8 encoding a block at a time; unpaired surrogates become '?', as in String.getBytes
+	private static UUID fromUTF8(boolean named, UUID namespace, CharSequence name) {
+		if (name == null) {
+			throw new NullPointerException("name == null");
+		}
+		Hasher h = hashers.get();
+		MessageDigest md = h.start(named, namespace);
+		byte[] buf = h.buf;
+		int n = 0;
+		int length = name.length();
+		for (int i = 0; i < length; i += 1) {
+			if (n > buf.length - 4) {
+				md.update(buf, 0, n);
+				n = 0;
+			}
+			char c = name.charAt(i);
+			if (c < 0x80) {
+				buf[n++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[n++] = (byte) (0xc0 | (c >> 6));
+				buf[n++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(name.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, name.charAt(++i));
+					buf[n++] = (byte) (0xf0 | (cp >> 18));
+					buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buf[n++] = (byte) (0x80 | (cp & 0x3f));
+				} else {
+					buf[n++] = (byte) '?';
+				}
+			} else {
+				buf[n++] = (byte) (0xe0 | (c >> 12));
+				buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[n++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		md.update(buf, 0, n);
+		return makeUUID(md.digest(), 5);
 	}
 
 	/**
@@ -0,0 +1,302 @@
+package org.rootsdev.polygenea;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * An open-addressed hash table from UUIDs to non-negative longs, stored as
+ * flat arrays of longs rather than as Java objects. Each slot holds the two
+ * longs of a UUID and its value, so a lookup costs a hash, a few adjacent
+ * memory reads, and no allocation.
+ * <p>
+ * The table can live on the Java heap or in a memory-mapped file. A mapped
+ * index persists between runs and costs no heap at all; a cold lookup is
+ * typically a single page fault.
+ * <p>
+ * Slots are grouped into chunks so that the table is not limited by the
+ * 2&nbsp;GiB size limit of a single mapped buffer.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class UUIDIndex implements Iterable<UUID>, Closeable {
+	private static final long MAGIC = 0x706f6c7975756964L; // "polyuuid"
+	private static final int HEADER_BYTES = 4096;
+	private static final int CHUNK_BITS = 22; // slots per chunk = 4M (96 MiB)
+	private static final int MIN_CAPACITY = 1 << 10;
+	private static final double MAX_LOAD = 0.6;
+
+	private final File file; // null if on the heap
+	private FileChannel channel;
+	private MappedByteBuffer headerMapped; // the buffers behind header and chunks, if mapped
+	private MappedByteBuffer[] mapped;
+	private LongBuffer header;
+	private LongBuffer[] chunks;
+	private long capacity; // always a power of two
+	private long size;
+
+	/**
+	 * Creates an empty index on the Java heap.
+	 */
+	public UUIDIndex() {
+		this.file = null;
+		this.header = LongBuffer.allocate(4);
+		this.allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Opens (or creates) an index stored in a memory-mapped file.
+	 *
+	 * @param file
+	 *            The file backing the index
+	 * @throws IOException
+	 *             if the file cannot be mapped or is not an index
+	 */
+	public UUIDIndex(File file) throws IOException {
+		this.file = file;
+		boolean existed = file.exists() && file.length() >= HEADER_BYTES;
+		this.open(file);
+		if (existed) {
+			if (header.get(0) != MAGIC) throw new IOException(file + " is not a UUID index");
+			this.capacity = header.get(1);
+			this.size = header.get(2);
+			this.map();
+		} else {
+			this.allocate(MIN_CAPACITY);
+		}
+	}
+
+	private void open(File f) throws IOException {
+		this.channel = new RandomAccessFile(f, "rw").getChannel();
+		this.headerMapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+		this.header = headerMapped.asLongBuffer();
+	}
+
+	private void allocate(long capacity) {
+		this.capacity = capacity;
+		this.size = 0;
+		header.put(0, MAGIC);
+		header.put(1, capacity);
+		header.put(2, 0);
+		if (file == null) {
+			int n = (int) ((capacity + chunkSlots() - 1) >> CHUNK_BITS);
+			chunks = new LongBuffer[n];
+			for (int i = 0; i < n; i += 1)
+				chunks[i] = LongBuffer.allocate(3 * (int) Math.min(chunkSlots(), capacity));
+		} else {
+			try {
+				channel.truncate(HEADER_BYTES);
+				this.map();
+			} catch (IOException ex) {
+				throw new Database.StorageException("Unable to resize " + file, ex);
+			}
+		}
+	}
+
+	private static long chunkSlots() {
+		return 1L << CHUNK_BITS;
+	}
+
+	private void map() throws IOException {
+		int n = (int) ((capacity + chunkSlots() - 1) >> CHUNK_BITS);
+		long slots = Math.min(chunkSlots(), capacity);
+		chunks = new LongBuffer[n];
+		mapped = new MappedByteBuffer[n];
+		for (int i = 0; i < n; i += 1) {
+			mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * slots * 24, slots * 24);
+			chunks[i] = mapped[i].asLongBuffer();
+		}
+	}
+
+	private static long hash(long msb, long lsb) {
+		long h = msb * 0x9e3779b97f4a7c15L ^ lsb;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/// returns the slot holding (msb,lsb) or the empty slot where it belongs
+	private long probe(long msb, long lsb) {
+		long mask = capacity - 1;
+		long slot = hash(msb, lsb) & mask;
+		while (true) {
+			LongBuffer c = chunks[(int) (slot >>> CHUNK_BITS)];
+			int i = 3 * (int) (slot & (chunkSlots() - 1));
+			if (c.get(i + 2) == 0) return slot;
+			if (c.get(i) == msb && c.get(i + 1) == lsb) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private long valueAt(long slot) {
+		return chunks[(int) (slot >>> CHUNK_BITS)].get(3 * (int) (slot & (chunkSlots() - 1)) + 2) - 1;
+	}
+
+	/**
+	 * @param u
+	 *            The UUID to look up
+	 * @return The value stored for {@code u}, or -1 if there is none.
+	 */
+	public long get(UUID u) {
+		return this.get(u.getMostSignificantBits(), u.getLeastSignificantBits());
+	}
+
+	/**
+	 * @param msb
+	 *            The most significant bits of the UUID to look up
+	 * @param lsb
+	 *            The least significant bits of the UUID to look up
+	 * @return The value stored for the UUID, or -1 if there is none.
+	 */
+	public long get(long msb, long lsb) {
+		return valueAt(probe(msb, lsb));
+	}
+
+	/**
+	 * Records a value for a UUID unless the UUID already has one.
+	 *
+	 * @param u
+	 *            The UUID to store
+	 * @param value
+	 *            A non-negative value to associate with it
+	 * @return {@literal true} if the UUID was added; {@literal false} if it was
+	 *         already present (in which case its value is unchanged).
+	 */
+	public boolean put(UUID u, long value) {
+		if (value < 0) throw new IllegalArgumentException("UUIDIndex values must be non-negative");
+		long msb = u.getMostSignificantBits();
+		long lsb = u.getLeastSignificantBits();
+		long slot = probe(msb, lsb);
+		if (valueAt(slot) >= 0) return false;
+		if (size + 1 > capacity * MAX_LOAD) {
+			this.grow();
+			slot = probe(msb, lsb);
+		}
+		LongBuffer c = chunks[(int) (slot >>> CHUNK_BITS)];
+		int i = 3 * (int) (slot & (chunkSlots() - 1));
+		c.put(i, msb);
+		c.put(i + 1, lsb);
+		c.put(i + 2, value + 1);
+		size += 1;
+		header.put(2, size);
+		return true;
+	}
+
+	/// rehashes into a table twice the size; a mapped index is rebuilt in a new file that then replaces the old one
+	private void grow() {
+		LongBuffer[] old = chunks;
+		long oldCapacity = capacity;
+		FileChannel oldChannel = channel;
+		File tmp = null;
+		if (file != null) {
+			tmp = new File(file.getPath() + ".tmp");
+			try {
+				if (tmp.exists() && !tmp.delete()) throw new IOException("Unable to delete " + tmp);
+				this.open(tmp);
+			} catch (IOException ex) {
+				throw new Database.StorageException("Unable to resize " + file, ex);
+			}
+		}
+		this.allocate(capacity * 2);
+		for (long s = 0; s < oldCapacity; s += 1) {
+			LongBuffer from = old[(int) (s >>> CHUNK_BITS)];
+			int j = 3 * (int) (s & (chunkSlots() - 1));
+			if (from.get(j + 2) == 0) continue;
+			long slot = probe(from.get(j), from.get(j + 1));
+			LongBuffer to = chunks[(int) (slot >>> CHUNK_BITS)];
+			int i = 3 * (int) (slot & (chunkSlots() - 1));
+			to.put(i, from.get(j));
+			to.put(i + 1, from.get(j + 1));
+			to.put(i + 2, from.get(j + 2));
+			size += 1;
+		}
+		header.put(2, size);
+		if (file != null) {
+			try {
+				oldChannel.close();
+				if (!tmp.renameTo(file)) throw new IOException("Unable to replace " + file);
+			} catch (IOException ex) {
+				throw new Database.StorageException("Unable to resize " + file, ex);
+			}
+		}
+	}
+
+	/**
+	 * Removes every entry from the index.
+	 */
+	public void clear() {
+		this.allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * @return The number of UUIDs in the index.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Iterates over the UUIDs in the index in no particular order.
+	 */
+	public Iterator<UUID> iterator() {
+		return new Iterator<UUID>() {
+			private long slot = advance(0);
+
+			private long advance(long s) {
+				while (s < capacity && valueAt(s) < 0)
+					s += 1;
+				return s;
+			}
+
+			public boolean hasNext() {
+				return slot < capacity;
+			}
+
+			public UUID next() {
+				if (slot >= capacity) throw new NoSuchElementException();
+				LongBuffer c = chunks[(int) (slot >>> CHUNK_BITS)];
+				int i = 3 * (int) (slot & (chunkSlots() - 1));
+				UUID ans = new UUID(c.get(i), c.get(i + 1));
+				slot = advance(slot + 1);
+				return ans;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("UUIDIndex entries cannot be removed");
+			}
+		};
+	}
+
+	/**
+	 * Forces a mapped index out to disk. Does nothing for heap indices.
+	 *
+	 * @throws IOException
+	 *             if the mapped file cannot be written
+	 */
+	public void force() throws IOException {
+		if (file == null) return;
+		for (MappedByteBuffer m : mapped)
+			m.force();
+		headerMapped.force();
+		channel.force(true);
+	}
+
+	/**
+	 * Forces a mapped index to disk and releases its file. Does nothing for
+	 * heap indices.
+	 */
+	public void close() throws IOException {
+		if (file == null) return;
+		this.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,237 @@
+package org.rootsdev.polygenea;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the integrity of a {@link Database} using a pool of worker threads.
+ * Every node checked is fully validated with {@link Node#validate(StringBuilder)},
+ * which includes re-hashing nodes without identity to confirm their type-5
+ * UUIDs, and each of its references is confirmed to be in the database.
+ * <p>
+ * Workers read nodes from the database concurrently. A disk-backed
+ * database's nodes have the references in their store headers looked up
+ * first, so that a node referring to one that was never stored is reported
+ * as dangling rather than unreadable. Each is then parsed afresh from the
+ * store without checking its UUID, as are the nodes it refers to that are not
+ * already cached, so each node is hashed once, by validation in the worker
+ * that checks it. Nodes that pass are cached, and are no longer listed by
+ * {@link Database#unverified()}.
+ * <p>
+ * Progress can be followed from another thread while a check runs, using
+ * {@link #checked()}, {@link #total()}, {@link #problemCount()} and
+ * {@link #nodesPerSecond()}. The database should not be changed while a check
+ * is in progress.
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+public class Verifier {
+	private static final int IDS_PER_TASK = 1024;
+
+	private final Database db;
+	private final int threads;
+
+	private volatile int total;
+	private final AtomicInteger checked = new AtomicInteger();
+	private final AtomicInteger problemCount = new AtomicInteger();
+	private volatile long started, stopped; // System.nanoTime() of the current or last check
+
+	/**
+	 * Describes a node that failed verification.
+	 */
+	public static class Problem {
+		/** The kinds of problem a Verifier reports. */
+		public static enum Kind {
+			/** The node could not be read, is invalid, or does not hash to its UUID. */
+			CORRUPT,
+			/** The node refers to a node that is not in the database. */
+			DANGLING
+		}
+
+		/** The id of the node in the database. */
+		public final int id;
+		/** The UUID the database has for the node. */
+		public final UUID uuid;
+		/** What kind of problem this is. */
+		public final Kind kind;
+		/** A human-readable description of the problem. */
+		public final String description;
+
+		Problem(int id, UUID uuid, Kind kind, String description) {
+			this.id = id;
+			this.uuid = uuid;
+			this.kind = kind;
+			this.description = description;
+		}
+
+		public String toString() {
+			return kind + " " + uuid + ": " + description;
+		}
+	}
+
+	/**
+	 * Creates a verifier that uses one worker per available processor.
+	 *
+	 * @param db
+	 *            The database to check
+	 */
+	public Verifier(Database db) {
+		this(db, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param db
+	 *            The database to check
+	 * @param threads
+	 *            How many worker threads to use
+	 */
+	public Verifier(Database db, int threads) {
+		if (threads < 1) throw new IllegalArgumentException("A Verifier needs at least one thread");
+		this.db = db;
+		this.threads = threads;
+	}
+
+	/**
+	 * Checks every node in the database.
+	 *
+	 * @return The problems found, in id order; empty if the database is
+	 *         intact.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the workers
+	 */
+	public List<Problem> verifyAll() throws InterruptedException {
+		int[] ids = new int[db.size()];
+		for (int i = 0; i < ids.length; i += 1)
+			ids[i] = i;
+		return this.verify(ids);
+	}
+
+	/**
+	 * Checks the nodes whose UUIDs were trusted when they were loaded (see
+	 * {@link Database#setVerification(Database.Verification)}).
+	 *
+	 * @return The problems found, in id order; empty if every such node is
+	 *         intact.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the workers
+	 */
+	public List<Problem> verifyUnverified() throws InterruptedException {
+		return this.verify(db.unverified());
+	}
+
+	/**
+	 * @return How many nodes the current (or last) check has to examine.
+	 */
+	public int total() {
+		return this.total;
+	}
+
+	/**
+	 * @return How many nodes the current (or last) check has examined so far.
+	 */
+	public int checked() {
+		return this.checked.get();
+	}
+
+	/**
+	 * @return How many problems the current (or last) check has found so far.
+	 */
+	public int problemCount() {
+		return this.problemCount.get();
+	}
+
+	/**
+	 * @return The average number of nodes examined per second by the current
+	 *         (or last) check, or 0 if none has started.
+	 */
+	public double nodesPerSecond() {
+		long start = started, stop = stopped;
+		if (start == 0) return 0;
+		long elapsed = (stop == 0 ? System.nanoTime() : stop) - start;
+		return elapsed <= 0 ? 0 : checked.get() * 1e9 / elapsed;
+	}
+
+	/// checks the given ids in parallel; returns the problems found in id order
+	private List<Problem> verify(final int[] ids) throws InterruptedException {
+		final List<Problem> problems = Collections.synchronizedList(new ArrayList<Problem>());
+		final AtomicInteger nextTask = new AtomicInteger();
+		final AtomicReference<Error> failure = new AtomicReference<Error>();
+		this.total = ids.length;
+		this.checked.set(0);
+		this.problemCount.set(0);
+		this.stopped = 0;
+		this.started = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int t = 0; t < threads; t += 1) {
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							for (int first = nextTask.getAndIncrement() * IDS_PER_TASK; first < ids.length && failure.get() == null; first = nextTask.getAndIncrement() * IDS_PER_TASK) {
+								int last = Math.min(first + IDS_PER_TASK, ids.length);
+								for (int i = first; i < last; i += 1) {
+									Problem p = check(ids[i]);
+									if (p != null) {
+										problems.add(p);
+										problemCount.incrementAndGet();
+									}
+									checked.incrementAndGet();
+								}
+							}
+						} catch (Error ex) {
+							failure.compareAndSet(null, ex);
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {}
+		} finally {
+			pool.shutdownNow();
+			this.stopped = System.nanoTime();
+		}
+		if (failure.get() != null) throw failure.get();
+		List<Problem> ans = new ArrayList<Problem>(problems);
+		Collections.sort(ans, new Comparator<Problem>() {
+			public int compare(Problem a, Problem b) {
+				return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+			}
+		});
+		return ans;
+	}
+
+	/// checks one node, returning null if it is intact
+	private Problem check(int id) {
+		UUID uuid = db.uuidOf(id);
+		Node n;
+		try {
+			UUID[] refs = db.storedReferences(id); // null in memory, where nothing can dangle
+			for (int i = 0; refs != null && i < refs.length; i += 1) {
+				int ref = db.idOf(refs[i]);
+				if (ref < 0) return new Problem(id, uuid, Problem.Kind.DANGLING, "refers to " + refs[i] + ", which is not in the database");
+				if (ref >= id) return new Problem(id, uuid, Problem.Kind.CORRUPT, "refers to " + refs[i] + ", which was stored after it");
+			}
+			n = db.lookupUnchecked(id); // validate() below does the hashing
+		} catch (RuntimeException ex) {
+			return new Problem(id, uuid, Problem.Kind.CORRUPT, "unreadable: " + ex);
+		}
+		StringBuilder log = new StringBuilder();
+		try {
+			if (!uuid.equals(n.getUUID())) return new Problem(id, uuid, Problem.Kind.CORRUPT, "stored as " + n.getUUID());
+			if (!n.validate(log)) return new Problem(id, uuid, Problem.Kind.CORRUPT, log.toString().trim());
+		} catch (RuntimeException ex) {
+			return new Problem(id, uuid, Problem.Kind.CORRUPT, "invalid: " + ex);
+		}
+		db.verified(id, n);
+		return null;
+	}
+}
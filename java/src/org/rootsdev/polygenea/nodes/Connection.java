@@ -3,6 +3,7 @@ package org.rootsdev.polygenea.nodes;
 import java.util.SortedMap;
 
 import org.rootsdev.polygenea.JSONParser;
+import org.rootsdev.polygenea.Node;
 import org.rootsdev.polygenea.NodeLookup;
 
 /**
@@ -78,6 +79,12 @@ public class Connection extends Claim {
 		this.selfCheck();
 	}
 
+	@Override
+	protected Node[] findReferences() {
+		if (this.getClass() != Connection.class) return super.findReferences(); // subclasses may add references
+		return nodesIn(from, source, to);
+	}
+
 	@Override
 	public boolean validate(StringBuilder log) {
 		boolean ok = super.validate(log);
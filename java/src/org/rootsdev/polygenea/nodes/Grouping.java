@@ -6,6 +6,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.rootsdev.polygenea.JSONParser;
+import org.rootsdev.polygenea.Node;
 import org.rootsdev.polygenea.NodeLookup;
 
 /**
@@ -73,6 +74,12 @@ public class Grouping extends Claim {
 		this.selfCheck();
 	}
 
+	@Override
+	protected Node[] findReferences() {
+		if (this.getClass() != Grouping.class) return super.findReferences(); // subclasses may add references
+		return nodesIn(source, subjects);
+	}
+
 	@Override
 	public boolean validate(StringBuilder log) {
 		boolean ok = super.validate(log);
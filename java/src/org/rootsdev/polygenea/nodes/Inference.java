@@ -10,6 +10,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.rootsdev.polygenea.JSONParser;
+import org.rootsdev.polygenea.Node;
 import org.rootsdev.polygenea.NodeLookup;
 
 /**
@@ -43,7 +44,8 @@ public class Inference extends Source {
 			this.rule = null;
 			backing = new TreeSet<Claim>();
 		}
-		for (Object o : (Iterable<?>) map.get("subjects")) {
+		Object list = map.containsKey("antecedents") ? map.get("antecedents") : map.get("subjects"); // older data used "subjects"
+		for (Object o : (Iterable<?>) list) {
 			Claim c = (Claim) lookup.lookup(o);
 			if (this.rule == null && backing.contains(c)) throw new IllegalArgumentException("duplicate claim " + c.getUUID());
 			backing.add(c);
@@ -75,6 +77,12 @@ public class Inference extends Source {
 		this.selfCheck();
 	}
 
+	@Override
+	protected Node[] findReferences() {
+		if (this.getClass() != Inference.class) return super.findReferences(); // subclasses may add references
+		return nodesIn(antecedents, rule);
+	}
+
 	@Override
 	public boolean validate(StringBuilder log) {
 		boolean ok = super.validate(log);
@@ -1,12 +1,9 @@
 package org.rootsdev.polygenea.nodes;
 
-import java.lang.reflect.Field;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.rootsdev.polygenea.JSONParser;
 import org.rootsdev.polygenea.Node;
@@ -58,6 +55,7 @@ import org.rootsdev.polygenea.NodeLookup;
 public class InferenceRule extends Node {
 	public final List<SortedMap<String, Object>> antecedents;
 	public final List<SortedMap<String, Object>> consequents;
+	private volatile RuleMatcher matcher; // compiled from antecedents on first use; see matcher()
 
 	/**
 	 * Constructor used by JSON loading methods in Node and Database
@@ -132,24 +130,7 @@ public class InferenceRule extends Node {
 	 */
 	public Node[] consequentsOf(Claim... antecedents) {
 		// step 1: check antecedents
-		if (antecedents.length != this.antecedents.size()) return null;
-		for (int i = 0; i < antecedents.length; i += 1) {
-			SortedMap<String, Object> targ = this.antecedents.get(i);
-			Claim have = antecedents[i];
-			if (targ.containsKey("!class") && !targ.get("!class").equals(have.getClass().getSimpleName())) return null;
-			for (String k : targ.keySet())
-				if (!k.startsWith("!")) {
-					try {
-						Field f = have.getClass().getField(k);
-						Object o = f.get(have);
-						if (!valueMatches(o, targ.get(k), antecedents)) return null;
-					} catch (NoSuchFieldException e) {
-						return null;
-					} catch (IllegalAccessException e) {
-						return null;
-					}
-				}
-		}
+		if (!this.matches(antecedents)) return null;
 		// step 2: make an inference node
 		Node[] answer = new Node[this.consequents.size() + 1];
 		answer[0] = new Inference(this, antecedents);
@@ -158,6 +139,7 @@ public class InferenceRule extends Node {
 		NodeLookup nl = new ConsequentLookup(antecedents, answer);
 		for (SortedMap<String, Object> json : this.consequents) {
 			answer[i] = Node.fromJSON(json, nl);
+			i += 1;
 		}
 		return answer;
 	}
@@ -185,8 +167,128 @@ public class InferenceRule extends Node {
 		}
 	}
 
-	private static final Pattern BANG_COLON = Pattern.compile("!([^:]*):(.*)");
-	private static final Pattern XREF_SYNTAX = Pattern.compile("([0-9]+)\\.([a-zA-Z_][a-zA-Z0-9_]*)");
+	/**
+	 * Checks whether the provided claims fit this rule's antecedents, without
+	 * deriving anything from them. The antecedents are compiled the first time
+	 * this (or {@link #consequentsOf}) is called, so checking many candidates
+	 * against the same rule is cheap.
+	 * 
+	 * @param antecedents
+	 *            An ordered array of {@link Claim}s
+	 * @return {@literal true} if the claims match this rule.
+	 * @throws UnsupportedOperationException
+	 *             if an antecedent uses an unknown "!___:" target string
+	 */
+	public boolean matches(Claim... antecedents) {
+		return this.matcher().matches(antecedents);
+	}
+
+	/**
+	 * Checks whether a claim could be one of this rule's antecedents, looking
+	 * only at the parts of that antecedent that do not refer to other
+	 * antecedents. Useful for discarding most candidates before trying
+	 * combinations of them.
+	 * 
+	 * @param i
+	 *            An index into {@link #antecedents}
+	 * @param claim
+	 *            A candidate for that antecedent
+	 * @return {@literal false} if claim cannot be antecedent i of any match.
+	 */
+	public boolean mightMatch(int i, Claim claim) {
+		return this.matcher().mightMatch(i, claim);
+	}
+
+	/**
+	 * The places where one of this rule's antecedents refers to another by
+	 * index, either as a whole field or as one element of a list field.
+	 * 
+	 * @return The references by index between antecedents, as compiled from
+	 *         {@link #antecedents}.
+	 * @throws UnsupportedOperationException
+	 *             if an antecedent uses an unknown "!___:" target string
+	 */
+	public List<Link> links() {
+		return Collections.unmodifiableList(this.matcher().links);
+	}
+
+	/**
+	 * The places where a field of one of this rule's antecedents must equal a
+	 * field of another, as given by an "!xref:" target string.
+	 * 
+	 * @return The "!xref:" targets of the antecedents, as compiled from
+	 *         {@link #antecedents}.
+	 * @throws UnsupportedOperationException
+	 *             if an antecedent uses an unknown "!___:" target string
+	 */
+	public List<XLink> xlinks() {
+		return Collections.unmodifiableList(this.matcher().xlinks);
+	}
+
+	/**
+	 * The fields of an antecedent that must equal a fixed string: those whose
+	 * targets are plain strings rather than patterns or references.
+	 * 
+	 * @param i
+	 *            An index into {@link #antecedents}
+	 * @return An unmodifiable map from field name to the string it must equal.
+	 * @throws UnsupportedOperationException
+	 *             if an antecedent uses an unknown "!___:" target string
+	 */
+	public Map<String, String> constants(int i) {
+		return this.matcher().constants.get(i);
+	}
+
+	/**
+	 * A field (or one element of a list field) of antecedent {@link #owner}
+	 * that must be antecedent {@link #target}.
+	 */
+	public static final class Link {
+		/** The antecedent whose field this is. */
+		public final int owner;
+		/** The name of the field. */
+		public final String field;
+		/** The index into the field's list, or -1 if the field is not a list. */
+		public final int position;
+		/** The antecedent the field must refer to. */
+		public final int target;
+
+		Link(int owner, String field, int position, int target) {
+			this.owner = owner;
+			this.field = field;
+			this.position = position;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * A field of antecedent {@link #owner} that must equal field
+	 * {@link #other} of antecedent {@link #from}, as in "!xref:from.other".
+	 */
+	public static final class XLink {
+		/** The antecedent whose field this is. */
+		public final int owner;
+		/** The name of the field. */
+		public final String field;
+		/** The antecedent whose field it must equal. */
+		public final int from;
+		/** The name of that antecedent's field. */
+		public final String other;
+
+		XLink(int owner, String field, int from, String other) {
+			this.owner = owner;
+			this.field = field;
+			this.from = from;
+			this.other = other;
+		}
+	}
+
+	/// the compiled antecedents; racing threads may each compile them, which is harmless
+	private RuleMatcher matcher() {
+		RuleMatcher m = this.matcher;
+		if (m == null) this.matcher = m = new RuleMatcher(this.antecedents);
+		return m;
+	}
 
 	/**
 	 * Compares a value found inside a Node to a target found inside an
@@ -214,6 +316,8 @@ public class InferenceRule extends Node {
 	 * Other !___: openings will be added later to allow more involved match
 	 * logic.
 	 * </ul>
+	 * This compiles target afresh on each call; rules compile their own
+	 * antecedents once and reuse them (see {@link #matches}).
 	 * 
 	 * @param value
 	 *            The actual value
@@ -226,54 +330,7 @@ public class InferenceRule extends Node {
 	 *         otherwise.
 	 */
 	public static boolean valueMatches(Object value, Object target, Claim... lookup) {
-		if (target instanceof Collection) {
-			if (!(value instanceof Collection)) return false;
-			if (((Collection<?>) target).size() != ((Collection<?>) value).size()) return false;
-			Iterator<?> ti = ((Collection<?>) target).iterator();
-			Iterator<?> vi = ((Collection<?>) value).iterator();
-			while (ti.hasNext())
-				if (!valueMatches(vi.next(), ti.next(), lookup)) return false;
-			return true;
-		}
-		if (target instanceof Number) {
-			int i = ((Number) target).intValue();
-			if (i >= lookup.length || i < 0) return false;
-			return lookup[i].equals(value);
-		}
-		if (target instanceof String) {
-			String starg = (String) target;
-			Matcher m = BANG_COLON.matcher(starg);
-			if (m.matches()) {
-				String kind = m.group(1);
-				starg = m.group(2);
-				if ("re".equals(kind)) {
-					return value instanceof String && ((String) value).matches(starg);
-				} else if ("contains".equals(kind)) {
-					if (!(value instanceof Collection)) return false;
-					target = JSONParser.parse(starg);
-					for (Object o : (Collection<?>) value)
-						if (valueMatches(o, target, lookup)) return true;
-					return false;
-				} else if ("xref".equals(kind)) {
-					m = XREF_SYNTAX.matcher(starg);
-					if (!m.matches()) throw new UnsupportedOperationException("Unknown !xref: syntax " + starg);
-					Claim c = lookup[Integer.parseInt(m.group(1))];
-					try {
-						Field f = c.getClass().getField(m.group(2));
-						return valueMatches(value, f.get(c), lookup);
-					} catch (NoSuchFieldException e) {
-						return false; // throw new IllegalArgumentException("node " + m.group(1) + " of type " + c.getClass() + " has no " + m.group(2) + " field");
-					} catch (IllegalAccessException e) {
-						throw new AssertionError("Field " + m.group(2) + " of class " + c.getClass() + " should have been public");
-					}
-				} else {
-					throw new UnsupportedOperationException("Unknown target string beginning !" + kind + ":");
-				}
-			} else {
-				return starg.equals(value);
-			}
-		}
-		return false;
+		return RuleMatcher.compile(target).matches(value, lookup);
 	}
 
 	@Override
@@ -6,6 +6,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.rootsdev.polygenea.JSONParser;
+import org.rootsdev.polygenea.Node;
 import org.rootsdev.polygenea.NodeLookup;
 
 /**
@@ -38,7 +39,8 @@ public class Match extends Thing {
 	public Match(SortedMap<String, Object> map, NodeLookup lookup) {
 		super(map, lookup);
 		SortedSet<Thing> backing = new TreeSet<Thing>();
-		for (Object o : (Iterable<?>) map.get("subjects")) {
+		Object same = map.containsKey("same") ? map.get("same") : map.get("subjects"); // older data used "subjects"
+		for (Object o : (Iterable<?>) same) {
 			Thing t = (Thing) lookup.lookup(o);
 			if (backing.contains(t)) throw new IllegalArgumentException("duplicate claim " + t.getUUID());
 			backing.add(t);
@@ -61,4 +63,10 @@ public class Match extends Thing {
 		this.same = Collections.unmodifiableSortedSet(backing);
 		this.selfCheck();
 	}
+
+	@Override
+	protected Node[] findReferences() {
+		if (this.getClass() != Match.class) return super.findReferences(); // subclasses may add references
+		return nodesIn(same, source);
+	}
 }
@@ -3,6 +3,7 @@ package org.rootsdev.polygenea.nodes;
 import java.util.SortedMap;
 
 import org.rootsdev.polygenea.JSONParser;
+import org.rootsdev.polygenea.Node;
 import org.rootsdev.polygenea.NodeLookup;
 
 /**
@@ -83,6 +84,12 @@ public class Property extends Claim {
 		this.selfCheck();
 	}
 
+	@Override
+	protected Node[] findReferences() {
+		if (this.getClass() != Property.class) return super.findReferences(); // subclasses may add references
+		return nodesIn(source, subject);
+	}
+
 	@Override
 	public boolean validate(StringBuilder log) {
 		boolean ok = super.validate(log);
@@ -0,0 +1,404 @@
+package org.rootsdev.polygenea.nodes;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.SortedMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.rootsdev.polygenea.JSONParser;
+
+/**
+ * The antecedents of an {@link InferenceRule}, compiled into a tree of
+ * matchers. Interpreting an antecedent directly means looking each field up by
+ * reflection, picking apart every "!___:" target string with a regular
+ * expression, recompiling "!re:" patterns and reparsing "!contains:" JSON,
+ * once per candidate claim. A RuleMatcher does all of that once, when the rule
+ * is first used; matching a claim after that allocates nothing.
+ * <p>
+ * Field accessors remember the field they found in each class of claim they
+ * have seen, so claims of mixed classes cost no more than claims of one.
+ * Regular expressions keep one Matcher per thread.
+ * <p>
+ * The compiled antecedents also describe how they refer to one another, and
+ * which of their fields are fixed strings, for joining them against indexes
+ * (see {@link InferenceRule#links()}).
+ *
+ * @author Luther Tychonievich. Released into the public domain. I would
+ *         consider it a courtesy if you cite me if you benefit from this code.
+ */
+final class RuleMatcher {
+	private static final Pattern BANG_COLON = Pattern.compile("!([^:]*):(.*)");
+	private static final Pattern XREF_SYNTAX = Pattern.compile("([0-9]+)\\.([a-zA-Z_][a-zA-Z0-9_]*)");
+
+	private final Antecedent[] antecedents;
+	final List<InferenceRule.Link> links = new ArrayList<InferenceRule.Link>();
+	final List<InferenceRule.XLink> xlinks = new ArrayList<InferenceRule.XLink>();
+	final List<Map<String, String>> constants = new ArrayList<Map<String, String>>();
+
+	/**
+	 * @param antecedents
+	 *            The antecedents of a rule
+	 * @throws UnsupportedOperationException
+	 *             if a target string uses an unknown "!___:" opening or a
+	 *             malformed "!xref:"
+	 */
+	RuleMatcher(List<SortedMap<String, Object>> antecedents) {
+		this.antecedents = new Antecedent[antecedents.size()];
+		for (int i = 0; i < this.antecedents.length; i += 1)
+			this.antecedents[i] = new Antecedent(antecedents.get(i));
+		for (int a = 0; a < this.antecedents.length; a += 1)
+			this.describe(a);
+	}
+
+	/// adds antecedent a's references to other antecedents to links and xlinks, and its fixed strings to constants
+	private void describe(int a) {
+		Antecedent ant = antecedents[a];
+		Map<String, String> consts = new HashMap<String, String>();
+		for (int i = 0; i < ant.fields.length; i += 1) {
+			String field = ant.fields[i].name;
+			Value v = ant.values[i];
+			if (v instanceof Ref) {
+				links.add(new InferenceRule.Link(a, field, -1, ((Ref) v).index));
+			} else if (v instanceof Each) {
+				Value[] parts = ((Each) v).parts;
+				for (int pos = 0; pos < parts.length; pos += 1)
+					if (parts[pos] instanceof Ref) links.add(new InferenceRule.Link(a, field, pos, ((Ref) parts[pos]).index));
+			} else if (v instanceof XRef) {
+				XRef x = (XRef) v;
+				xlinks.add(new InferenceRule.XLink(a, field, x.index, x.field.name));
+			} else if (v instanceof Equals) {
+				consts.put(field, ((Equals) v).target);
+			}
+		}
+		constants.add(Collections.unmodifiableMap(consts));
+	}
+
+	/**
+	 * @return The number of antecedents the rule expects.
+	 */
+	int size() {
+		return antecedents.length;
+	}
+
+	/**
+	 * @param claims
+	 *            An ordered array of claims
+	 * @return {@literal true} if each claim fits the corresponding antecedent.
+	 */
+	boolean matches(Claim[] claims) {
+		if (claims.length != antecedents.length) return false;
+		for (int i = 0; i < claims.length; i += 1)
+			if (!antecedents[i].matches(claims[i], claims)) return false;
+		return true;
+	}
+
+	/**
+	 * Checks one antecedent against one claim, ignoring any parts of it that
+	 * refer to other antecedents. A claim that fails this test cannot appear
+	 * in position i of any match; one that passes still might not.
+	 *
+	 * @param i
+	 *            An index into the antecedents
+	 * @param claim
+	 *            A candidate for that antecedent
+	 * @return {@literal false} if claim cannot be antecedent i.
+	 */
+	boolean mightMatch(int i, Claim claim) {
+		return antecedents[i].matches(claim, null);
+	}
+
+	/**
+	 * Compiles a target pattern; see {@link InferenceRule#valueMatches} for
+	 * the grammar.
+	 *
+	 * @param target
+	 *            A target pattern from an antecedent
+	 * @return A matcher for that target
+	 */
+	static Value compile(Object target) {
+		if (target instanceof Collection) {
+			Collection<?> c = (Collection<?>) target;
+			Value[] parts = new Value[c.size()];
+			int i = 0;
+			for (Object o : c)
+				parts[i++] = compile(o);
+			return new Each(parts);
+		}
+		if (target instanceof Number) return new Ref(((Number) target).intValue());
+		if (target instanceof String) {
+			String starg = (String) target;
+			Matcher m = BANG_COLON.matcher(starg);
+			if (!m.matches()) return new Equals(starg);
+			String kind = m.group(1);
+			starg = m.group(2);
+			if ("re".equals(kind)) return new Regex(Pattern.compile(starg));
+			if ("contains".equals(kind)) return new Contains(compile(JSONParser.parse(starg)));
+			if ("xref".equals(kind)) {
+				m = XREF_SYNTAX.matcher(starg);
+				if (!m.matches()) throw new UnsupportedOperationException("Unknown !xref: syntax " + starg);
+				return new XRef(Integer.parseInt(m.group(1)), new Accessor(m.group(2)));
+			}
+			throw new UnsupportedOperationException("Unknown target string beginning !" + kind + ":");
+		}
+		return NEVER;
+	}
+
+	/// one antecedent: an optional class name and a matcher per field
+	private static final class Antecedent {
+		final String className;
+		final Accessor[] fields;
+		final Value[] values;
+
+		Antecedent(SortedMap<String, Object> targ) {
+			this.className = (String) targ.get("!class");
+			int n = 0;
+			for (String k : targ.keySet())
+				if (!k.startsWith("!")) n += 1;
+			this.fields = new Accessor[n];
+			this.values = new Value[n];
+			n = 0;
+			for (Map.Entry<String, Object> e : targ.entrySet())
+				if (!e.getKey().startsWith("!")) {
+					fields[n] = new Accessor(e.getKey());
+					values[n] = compile(e.getValue());
+					n += 1;
+				}
+		}
+
+		/// lookup is null when only the claim itself is to be checked
+		boolean matches(Claim have, Claim[] lookup) {
+			if (className != null && !className.equals(have.getClass().getSimpleName())) return false;
+			for (int i = 0; i < fields.length; i += 1) {
+				Field f = fields[i].field(have.getClass());
+				if (f == null) return false;
+				if (lookup == null && !values[i].local()) continue;
+				if (!values[i].matches(Accessor.get(f, have), lookup)) return false;
+			}
+			return true;
+		}
+	}
+
+	/// a public field looked up by name, remembered for each class it has been asked about
+	private static final class Accessor {
+		private static final Object[] NONE = new Object[0];
+
+		final String name;
+		private volatile Object[] seen = NONE; // class, field (null if it has none) pairs; replaced, never changed
+
+		Accessor(String name) {
+			this.name = name;
+		}
+
+		Field field(Class<?> type) {
+			Object[] s = seen;
+			for (int i = 0; i < s.length; i += 2)
+				if (s[i] == type) return (Field) s[i + 1];
+			Field f;
+			try {
+				f = type.getField(name);
+			} catch (NoSuchFieldException e) {
+				f = null;
+			}
+			synchronized (this) { // only the first time each class comes along
+				s = Arrays.copyOf(seen, seen.length + 2);
+				s[s.length - 2] = type;
+				s[s.length - 1] = f;
+				seen = s;
+			}
+			return f;
+		}
+
+		static Object get(Field f, Object o) {
+			try {
+				return f.get(o);
+			} catch (IllegalAccessException e) {
+				throw new AssertionError("Field " + f.getName() + " of class " + o.getClass() + " should have been public");
+			}
+		}
+	}
+
+	/** A compiled target pattern. */
+	static abstract class Value {
+		/**
+		 * @param value
+		 *            The actual value
+		 * @param lookup
+		 *            The claims that references into the antecedents resolve
+		 *            to
+		 * @return {@literal true} if the value matches this pattern.
+		 */
+		abstract boolean matches(Object value, Claim[] lookup);
+
+		/// true if this pattern never looks at the other antecedents
+		boolean local() {
+			return true;
+		}
+	}
+
+	private static final Value NEVER = new Value() {
+		boolean matches(Object value, Claim[] lookup) {
+			return false;
+		}
+	};
+
+	/// a collection of the same length, matched element by element
+	private static final class Each extends Value {
+		final Value[] parts;
+		final boolean local;
+
+		Each(Value[] parts) {
+			this.parts = parts;
+			boolean ok = true;
+			for (Value v : parts)
+				ok &= v.local();
+			this.local = ok;
+		}
+
+		boolean matches(Object value, Claim[] lookup) {
+			if (!(value instanceof Collection)) return false;
+			Collection<?> c = (Collection<?>) value;
+			if (c.size() != parts.length) return false;
+			if (value instanceof List && value instanceof RandomAccess) {
+				List<?> l = (List<?>) value;
+				for (int i = 0; i < parts.length; i += 1)
+					if (!parts[i].matches(l.get(i), lookup)) return false;
+				return true;
+			}
+			Iterator<?> vi = c.iterator();
+			for (int i = 0; i < parts.length; i += 1)
+				if (!parts[i].matches(vi.next(), lookup)) return false;
+			return true;
+		}
+
+		boolean local() {
+			return local;
+		}
+	}
+
+	/// the claim at an index into the antecedents
+	private static final class Ref extends Value {
+		final int index;
+
+		Ref(int index) {
+			this.index = index;
+		}
+
+		boolean matches(Object value, Claim[] lookup) {
+			if (index >= lookup.length || index < 0) return false;
+			return lookup[index].equals(value);
+		}
+
+		boolean local() {
+			return false;
+		}
+	}
+
+	/// a plain string
+	private static final class Equals extends Value {
+		final String target;
+
+		Equals(String target) {
+			this.target = target;
+		}
+
+		boolean matches(Object value, Claim[] lookup) {
+			return target.equals(value);
+		}
+	}
+
+	/// !re:
+	private static final class Regex extends Value {
+		final ThreadLocal<Matcher> matcher;
+
+		Regex(final Pattern pattern) {
+			this.matcher = new ThreadLocal<Matcher>() {
+				@Override
+				protected Matcher initialValue() {
+					return pattern.matcher("");
+				}
+			};
+		}
+
+		boolean matches(Object value, Claim[] lookup) {
+			if (!(value instanceof String)) return false;
+			Matcher m = matcher.get().reset((String) value);
+			boolean ok = m.matches();
+			m.reset(""); // don't hold on to the value
+			return ok;
+		}
+	}
+
+	/// !contains:
+	private static final class Contains extends Value {
+		final Value element;
+
+		Contains(Value element) {
+			this.element = element;
+		}
+
+		boolean matches(Object value, Claim[] lookup) {
+			if (!(value instanceof Collection)) return false;
+			for (Object o : (Collection<?>) value)
+				if (element.matches(o, lookup)) return true;
+			return false;
+		}
+
+		boolean local() {
+			return element.local();
+		}
+	}
+
+	/// !xref:
+	private static final class XRef extends Value {
+		final int index;
+		final Accessor field;
+
+		XRef(int index, Accessor field) {
+			this.index = index;
+			this.field = field;
+		}
+
+		boolean matches(Object value, Claim[] lookup) {
+			Claim c = lookup[index];
+			Field f = field.field(c.getClass());
+			if (f == null) return false;
+			return equal(value, Accessor.get(f, c), lookup);
+		}
+
+		/// the other node's value, used as a literal target
+		private static boolean equal(Object value, Object target, Claim[] lookup) {
+			if (target instanceof Collection) {
+				if (!(value instanceof Collection)) return false;
+				if (((Collection<?>) target).size() != ((Collection<?>) value).size()) return false;
+				Iterator<?> ti = ((Collection<?>) target).iterator();
+				Iterator<?> vi = ((Collection<?>) value).iterator();
+				while (ti.hasNext())
+					if (!equal(vi.next(), ti.next(), lookup)) return false;
+				return true;
+			}
+			if (target instanceof String) {
+				String s = (String) target;
+				if (s.startsWith("!") && s.indexOf(':') > 0) return compile(s).matches(value, lookup); // rare; not worth caching
+				return s.equals(value);
+			}
+			if (target instanceof Number) {
+				int i = ((Number) target).intValue();
+				return i >= 0 && i < lookup.length && lookup[i].equals(value);
+			}
+			return false;
+		}
+
+		boolean local() {
+			return false;
+		}
+	}
+}
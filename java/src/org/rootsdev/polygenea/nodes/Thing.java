@@ -33,7 +33,7 @@ public class Thing extends Claim {
 	 */
 	public Thing(SortedMap<String, Object> map, NodeLookup lookup) {
 		super(map, lookup);
-		this.selfCheck();
+		if (this.getClass() == Thing.class) this.selfCheck(); // subclasses check once their own fields are set
 	}
 
 	/** Constructor used by code that wishes to create new objects 
@@ -41,6 +41,6 @@ public class Thing extends Claim {
 	 */
 	public Thing(Source source) {
 		super(source);
-		this.selfCheck();
+		if (this.getClass() == Thing.class) this.selfCheck();
 	}
 }
@@ -0,0 +1,469 @@
+package org.rootsdev.polygenea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import org.rootsdev.polygenea.nodes.Citation;
+import org.rootsdev.polygenea.nodes.Claim;
+import org.rootsdev.polygenea.nodes.Connection;
+import org.rootsdev.polygenea.nodes.ExternalSource;
+import org.rootsdev.polygenea.nodes.Match;
+import org.rootsdev.polygenea.nodes.Note;
+import org.rootsdev.polygenea.nodes.Property;
+import org.rootsdev.polygenea.nodes.Thing;
+
+public class TestDatabase {
+
+	private final List<File> tempDirs = new ArrayList<File>();
+
+	private File tempDir() throws IOException {
+		File f = File.createTempFile("polygenea", "");
+		f.delete();
+		f.mkdirs();
+		tempDirs.add(f);
+		return f;
+	}
+
+	@After
+	public void deleteTempDirs() {
+		for (File f : tempDirs)
+			delete(f);
+	}
+
+	/// deletes a file, or a directory and everything in it
+	private static void delete(File f) {
+		File[] inside = f.listFiles();
+		if (inside != null) for (File g : inside)
+			delete(g);
+		f.delete();
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		File dir = tempDir();
+		Citation c = new Citation("type", "imagination", "when", "2014-07-06 04:24:20+00:00");
+		ExternalSource es = new ExternalSource(c, "John and Jane were married");
+		Thing t1 = new Thing(es);
+		Thing t2 = new Thing(es);
+		Property p = new Property(es, t1, "name", "John");
+		Connection k = new Connection(es, t1, "spouse", t2);
+		Match m = new Match(es, t1, t2);
+		Database db = new Database(dir);
+		db.add(m, k, p, t2, t1, es, c); // out of order on purpose
+		String before = db.toString();
+		db.close();
+
+		Database again = new Database(dir);
+		assertEquals("reopened size", 7, again.size());
+		assertEquals("reopened property", "John", ((Property) again.lookup(p.getUUID())).value);
+		assertEquals("reopened incoming edges", 3, again.in(again.lookup(t1.getUUID())).size());
+		assertEquals("reopened serialisation", before, again.toString());
+		assertEquals("reopened things", 3, again.count(Thing.class));
+		assertEquals("reopened relation", Arrays.asList(k), new ArrayList<Claim>(again.related("spouse")));
+		again.close();
+	}
+
+	@Test
+	public void testLookupAddsDependencies() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t = new Thing(es);
+		Database db = new Database();
+		db.lookup(t);
+		assertEquals("dependencies added", 3, db.size());
+		assertTrue("citation added", db.contains(c.getUUID()));
+	}
+
+	@Test
+	public void testDenseIds() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t = new Thing(es);
+		Property p = new Property(es, t, "name", "Jane");
+		Database db = new Database();
+		db.add(p, t, es, c);
+		assertEquals("dependencies get smaller ids", 0, db.idOf(c));
+		assertEquals("ids are dense", 3, db.idOf(p));
+		assertEquals("id to UUID", t.getUUID(), db.uuidOf(db.idOf(t)));
+		assertEquals("lookup by id", p, db.lookup(3));
+		assertTrue("out by id", Arrays.equals(new int[] { 1, 2 }, db.out(3)));
+		assertEquals("in by id", 2, db.in(db.idOf(es)).length);
+		assertEquals("unknown UUID", -1, db.idOf(UUID.randomUUID()));
+	}
+
+	@Test
+	public void testConclusions() throws IOException {
+		File dir = tempDir();
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t = new Thing(es);
+		Note note = new Note("me", "2014-07-06");
+		Property p = new Property(es, t, "name", "Jane");
+		Property q = new Property(note, t, "nickname", "JJ");
+		Database db = new Database(dir);
+		db.add(q, p, note, t, es, c);
+		assertTrue("note", db.isNote(db.idOf(note)));
+		assertTrue("derived from note", db.isNote(db.idOf(q)));
+		assertEquals("conclusions", Arrays.asList(c, es, t, p), new ArrayList<Node>(db.conclusions()));
+		db.close();
+
+		Database again = new Database(dir);
+		assertEquals("reopened conclusions", 4, again.conclusions().size());
+		assertTrue("reopened derived from note", again.isNote(again.idOf(q)));
+		again.close();
+	}
+
+	@Test
+	public void testDeferredVerification() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t = new Thing(es);
+		Property p = new Property(es, t, "name", "Jane");
+		Property q = new Property(es, t, "name", "Jim");
+		String json = "[" + p + "," + q.toString().replace("Jim", "Joe") + "]";
+		Database full = new Database();
+		full.add(c, es, t);
+		try {
+			full.addJSON(json);
+			assertTrue("forged UUID accepted", false);
+		} catch (IllegalArgumentException ex) {}
+
+		Database db = new Database();
+		db.add(c, es, t);
+		db.setVerification(Database.Verification.DEFERRED);
+		db.addJSON(json);
+		assertEquals("trusted", 5, db.size());
+		assertTrue("unverified", Arrays.equals(new int[] { 3, 4 }, db.unverified()));
+		assertTrue("genuine", db.verify(3, null));
+		assertTrue("forged", !db.verify(4, null));
+		assertTrue("still unverified", Arrays.equals(new int[] { 4 }, db.unverified()));
+	}
+
+	@Test
+	public void testVerifier() throws InterruptedException, IOException {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t = new Thing(es);
+		Property p = new Property(es, t, "name", "Jim");
+		Database db = new Database();
+		db.setVerification(Database.Verification.DEFERRED);
+		db.addJSON("[" + c + "," + es + "," + t + "," + p.toString().replace("Jim", "Joe") + "]");
+		Verifier v = new Verifier(db, 2);
+		List<Verifier.Problem> problems = v.verifyAll();
+		assertEquals("problems", 1, problems.size());
+		assertEquals("forged", p.getUUID(), problems.get(0).uuid);
+		assertEquals("kind", Verifier.Problem.Kind.CORRUPT, problems.get(0).kind);
+		assertEquals("progress", 4, v.checked());
+		assertTrue("unverified", Arrays.equals(new int[] { 3 }, db.unverified()));
+		assertEquals("recheck", 1, v.verifyUnverified().size());
+
+		File dir = tempDir();
+		Database stored = new Database(dir);
+		stored.setVerification(Database.Verification.DEFERRED);
+		stored.addJSON("[" + c + "," + es + "," + t + "," + p.toString().replace("Jim", "Joe") + "]");
+		stored.close();
+		stored = new Database(dir);
+		problems = new Verifier(stored, 2).verifyAll();
+		assertEquals("problems in a store", 1, problems.size());
+		assertTrue("found by validation, not while reading: " + problems.get(0), !problems.get(0).toString().contains("unreadable"));
+		stored.close();
+
+		dir = tempDir();
+		NodeStore store = new NodeStore(dir);
+		store.append(es); // but not the citation it refers to
+		store.append(t);
+		store.close();
+		stored = new Database(dir);
+		assertEquals("opened", 2, stored.size());
+		problems = new Verifier(stored, 2).verifyAll();
+		assertEquals("dangling", Verifier.Problem.Kind.DANGLING, problems.get(0).kind);
+		assertEquals("dangling node", es.getUUID(), problems.get(0).uuid);
+		assertTrue("names the missing node: " + problems.get(0), problems.get(0).description.contains(c.getUUID().toString()));
+		stored.close();
+	}
+
+	@Test
+	public void testByClass() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "John and Jane were married");
+		Thing t1 = new Thing(es);
+		Thing t2 = new Thing(es);
+		Property p = new Property(es, t1, "name", "John");
+		Connection k = new Connection(es, t1, "spouse", t2);
+		Match m = new Match(es, t1, t2);
+		Database db = new Database();
+		db.add(m, k, p, t2, t1, es, c);
+		assertEquals("properties", Arrays.asList(p), new ArrayList<Property>(db.ofClass(Property.class)));
+		assertEquals("things include matches", 3, db.count(Thing.class));
+		assertEquals("matches", 1, db.count(Match.class));
+		assertEquals("claims", 5, db.ofClass(Claim.class).size());
+		int[] things = db.idsOf(Thing.class);
+		for (int i = 1; i < things.length; i += 1)
+			assertTrue("id order", things[i - 1] < things[i]);
+		assertEquals("last thing", m, db.lookup(things[2]));
+	}
+
+	@Test
+	public void testStringIndexes() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Birth register");
+		Thing t1 = new Thing(es);
+		Thing t2 = new Thing(es);
+		Property b1 = new Property(es, t1, "birth", "1850-03-02");
+		Property b2 = new Property(es, t2, "birth", "1851-11-30");
+		Property d1 = new Property(es, t1, "death", "1850-12-01");
+		Connection k = new Connection(es, t1, "parent", t2);
+		Database db = new Database();
+		db.add(c, es, t1, t2, b1, b2, d1, k);
+		assertEquals("key", 2, db.properties("birth").size());
+		assertEquals("exact", Arrays.asList(b2), new ArrayList<Property>(db.properties("birth", "1851-11-30")));
+		assertEquals("prefix", Arrays.asList(b1), new ArrayList<Property>(db.propertiesWithPrefix("birth", "1850")));
+		assertEquals("any key", Arrays.asList(b1, d1), new ArrayList<Property>(db.propertiesWithPrefix(null, "1850")));
+		assertEquals("range", Arrays.asList(b1, b2), new ArrayList<Property>(db.propertiesInRange("birth", "1850", "1852")));
+		assertEquals("relation", Arrays.asList(k), new ArrayList<Claim>(db.related("parent")));
+		assertEquals("no relation", 0, db.relatedWithPrefix("spouse").size());
+	}
+
+	@Test
+	public void testSearch() throws IOException {
+		File dir = tempDir();
+		Citation c = new Citation("type", "parish register", "parish", "St. Mary's, Smithfield");
+		ExternalSource a = new ExternalSource(c, "Baptism of John Smith, son of William Smith, 3 March 1850");
+		ExternalSource b = new ExternalSource(c, "Marriage of Smith Johnson and Mary Smithers, with witnesses John Brown, Ann Brown, Peter Green and Jane Smith");
+		ExternalSource image = new ExternalSource(c, "John Smith", "image/png");
+		Database db = new Database(dir);
+		db.add(c, a, b, image);
+		assertEquals("word", Arrays.asList(a.getUUID(), b.getUUID()), db.search("SMITH", 10));
+		assertEquals("phrase", Arrays.asList(a.getUUID()), db.search("\"john smith\"", 10));
+		assertEquals("all words", Arrays.asList(b.getUUID()), db.search("smith brown", 10));
+		assertEquals("prefix", Arrays.asList(c.getUUID()), db.search("smithf*", 10));
+		assertEquals("prefixes", 3, db.search("smith*", 10).size());
+		assertEquals("limit", 1, db.search("smith*", 1).size());
+		db.close();
+
+		Database again = new Database(dir);
+		assertEquals("reopened", Arrays.asList(a.getUUID()), again.search("\"john smith\" 1850", 10));
+		again.close();
+	}
+
+	@Test
+	public void testEquivalence() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Three records of one John");
+		Thing t1 = new Thing(es);
+		Thing t2 = new Thing(es);
+		Thing t3 = new Thing(es);
+		Thing other = new Thing(es);
+		Property p = new Property(es, t3, "name", "John");
+		Connection k = new Connection(es, other, "parent", t1);
+		Match m1 = new Match(es, t1, t2);
+		Database db = new Database();
+		db.add(c, es, t1, t2, t3, other, p, k, m1);
+		assertTrue("matched", db.isSame(t1, t2));
+		assertTrue("not yet chained", !db.isSame(t1, t3));
+		assertEquals("claims before chaining", Arrays.asList(k, m1), new ArrayList<Node>(db.claimsAbout(t2)));
+
+		Match m2 = new Match(es, t2, t3);
+		db.add(m2);
+		assertTrue("chained", db.isSame(t1, t3));
+		assertTrue("a match is the same as what it matches", db.isSame(m1, t3));
+		assertTrue("unmatched", !db.isSame(t1, other));
+		assertEquals("equivalent", Arrays.asList(t1, t2, t3, m1, m2), new ArrayList<Thing>(db.equivalent(t3)));
+		assertEquals("claims", Arrays.asList(p, k, m1, m2), new ArrayList<Node>(db.claimsAbout(t1)));
+		assertEquals("in of a match is transitive", 4, db.in(m1).size());
+		assertEquals("in of a thing is direct", 2, db.in(t3).size());
+	}
+
+	@Test
+	public void testSerializableOrder() {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t = new Thing(es);
+		Property p = new Property(es, t, "name", "Jane");
+		Database db = new Database();
+		db.add(p, t, es, c);
+		List<Node> order = db.asSerializableCollection();
+		assertEquals("size", 4, order.size());
+		for (int i = 0; i < order.size(); i += 1)
+			for (Node n : order.get(i).out())
+				assertTrue(n + " before " + order.get(i), order.indexOf(n) < i);
+	}
+
+	@Test
+	public void testWriteJSON() throws IOException {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t1 = new Thing(es);
+		Thing t2 = new Thing(es);
+		Connection k = new Connection(es, t1, "spouse", t2);
+		Database db = new Database();
+		db.add(k, t2, t1, es, c);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		db.writeJSON(bytes);
+		assertEquals("same as compressedJSON", Node.compressedJSON(k, t2, t1, es, c), bytes.toString("UTF-8"));
+		Database again = new Database();
+		again.addJSON(new StringReader(bytes.toString("UTF-8")));
+		assertEquals("round trip", db.toString(), again.toString());
+	}
+
+	@Test
+	public void testBulkLoad() throws IOException {
+		Citation c = new Citation("type", "imagination");
+		ExternalSource es = new ExternalSource(c, "Jane");
+		Thing t1 = new Thing(es);
+		Thing t2 = new Thing(es);
+		Connection k = new Connection(es, t1, "spouse", t2);
+		StringBuilder ndjson = new StringBuilder();
+		for (Node n : new Node[] { k, t2, t1, es, c }) // dependencies last on purpose
+			ndjson.append(n).append("\n\n");
+		Database db = new Database();
+		assertEquals("nodes read", 5, new BulkLoader(db, 2).load(new StringReader(ndjson.toString())));
+		assertEquals("nodes added", 5, db.size());
+		assertEquals("edges", 3, db.in(db.lookup(es.getUUID())).size());
+
+		ndjson.setLength(0);
+		for (int i = 0; i < 1000; i += 1) // several batches, all after the node they refer to
+			ndjson.append(new Property(es, t1, "age", "" + i)).append("\n");
+		assertEquals("more nodes read", 1001, new BulkLoader(db, 2).load(new StringReader(t1 + "\n" + ndjson)));
+		assertEquals("properties", 1000, db.properties("age").size());
+	}
+
+	@Test
+	public void testConcurrentReaders() throws InterruptedException {
+		Citation c = new Citation("type", "imagination");
+		final ExternalSource es = new ExternalSource(c, "a crowd");
+		final Database db = new Database();
+		db.add(c, es);
+		final Thing[] people = new Thing[2000];
+		for (int i = 0; i < people.length; i += 1)
+			people[i] = new Thing(es);
+		final AtomicReference<String> problem = new AtomicReference<String>();
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r += 1) {
+			readers[r] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; db.size() < 2 + 2 * people.length; i = (i + 7) % people.length) {
+							// the name is added in the same batch as the person, so is visible whenever they are
+							if (db.contains(people[i].getUUID()) && db.properties("name", "p" + i).isEmpty()) problem.compareAndSet(null, "p" + i + " seen without a name");
+							if (db.size() % 2 != 0) problem.compareAndSet(null, "size " + db.size() + " counts half a batch");
+							db.properties("name").size();
+						}
+					} catch (Throwable ex) {
+						problem.compareAndSet(null, ex.toString());
+					}
+				}
+			};
+			readers[r].start();
+		}
+		for (int i = 0; i < people.length; i += 1)
+			db.add(people[i], new Property(es, people[i], "name", "p" + i));
+		for (Thread t : readers)
+			t.join();
+		assertEquals("no reader saw part of a batch", null, problem.get());
+		assertEquals("names", people.length, db.properties("name").size());
+	}
+
+	@Test
+	public void testAnnounceAfterFailure() {
+		Citation c = new Citation("type", "imagination");
+		Database db = new Database();
+		final List<Integer> told = new ArrayList<Integer>();
+		db.addListener(new Database.Listener() {
+			public void added(Database db, int id) {
+				told.add(id);
+			}
+		});
+		try {
+			db.addJSON("[" + c + ", {\"!class\":\"Thing\",\"source\":7}]");
+			assertTrue("bad reference accepted", false);
+		} catch (IllegalArgumentException expected) {}
+		assertEquals("added before the failure", 1, db.size());
+		assertEquals("and announced", Arrays.asList(0), told);
+	}
+
+	@Test
+	public void testReadDuringImport() throws Exception {
+		Citation c = new Citation("type", "census");
+		StringBuilder json = new StringBuilder("[" + c);
+		for (int i = 0; i < 5000; i += 1)
+			json.append(",").append(new ExternalSource(c, "Household " + i));
+		json.append("]");
+		final Database db = new Database();
+		final AtomicReference<String> seen = new AtomicReference<String>();
+		Reader slow = new FilterReader(new StringReader(json.toString())) {
+			private int reads;
+
+			public int read(char[] buf, int off, int len) throws IOException {
+				if (++reads == 500) { // well into the list, with some batches in
+					FutureTask<String> reader = new FutureTask<String>(new Callable<String>() {
+						public String call() {
+							return db.size() + " " + db.lookup(0).getClass().getSimpleName();
+						}
+					});
+					new Thread(reader).start();
+					try {
+						seen.set(reader.get(10, TimeUnit.SECONDS));
+					} catch (Exception ex) {
+						seen.set(ex.toString());
+					}
+				}
+				return super.read(buf, off, Math.min(len, 1024));
+			}
+		};
+		db.addJSON(slow);
+		assertEquals("all added", 5001, db.size());
+		assertTrue("a reader was held up: " + seen.get(), seen.get().endsWith(" Citation"));
+		assertTrue("no batch was visible: " + seen.get(), !seen.get().startsWith("0 "));
+	}
+
+	/// opens the database in args[0] and writes it all out as JSON, discarding the output; see testExportLargerThanHeap
+	public static void main(String[] args) throws IOException {
+		Database db = new Database(new File(args[0]));
+		db.writeJSON(new OutputStream() {
+			public void write(int b) {}
+
+			public void write(byte[] b, int off, int len) {}
+		});
+		db.close();
+	}
+
+	@Test
+	public void testExportLargerThanHeap() throws IOException, InterruptedException {
+		File dir = tempDir();
+		Citation c = new Citation("type", "imagination");
+		Database db = new Database(dir);
+		db.add(c);
+		char[] filler = new char[4000];
+		Arrays.fill(filler, 'x');
+		for (int i = 0; i < 10000; i += 1) // about 40MB of contents
+			db.add(new ExternalSource(c, i + new String(filler), "application/octet-stream"));
+		db.close();
+		File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+		Process p = new ProcessBuilder(java.getPath(), "-Xmx16m", "-cp", System.getProperty("java.class.path"), TestDatabase.class.getName(), dir.getPath()).redirectErrorStream(true).start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream in = p.getInputStream();
+		for (int b = in.read(); b >= 0; b = in.read())
+			output.write(b);
+		assertEquals("exported in a 16MB heap: " + output.toString("UTF-8"), 0, p.waitFor());
+	}
+}
@@ -0,0 +1,191 @@
+package org.rootsdev.polygenea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.junit.Test;
+import org.rootsdev.polygenea.nodes.Citation;
+import org.rootsdev.polygenea.nodes.Claim;
+import org.rootsdev.polygenea.nodes.Connection;
+import org.rootsdev.polygenea.nodes.ExternalSource;
+import org.rootsdev.polygenea.nodes.Inference;
+import org.rootsdev.polygenea.nodes.InferenceRule;
+import org.rootsdev.polygenea.nodes.Property;
+import org.rootsdev.polygenea.nodes.Thing;
+
+public class TestInferenceEngine {
+
+	@SuppressWarnings("unchecked")
+	private static List<SortedMap<String, Object>> json(String s) {
+		return (List<SortedMap<String, Object>>) JSONParser.parse(s);
+	}
+
+	/** —child-of→ implies —descendant-of→ */
+	static InferenceRule childRule() {
+		return new InferenceRule(
+				json("[{\"!class\":\"Thing\"},{\"!class\":\"Thing\"},{\"!class\":\"Connection\",\"from\":0,\"relation\":\"child-of\",\"to\":1}]"),
+				json("[{\"!class\":\"Connection\",\"from\":0,\"relation\":\"descendant-of\",\"to\":1}]"));
+	}
+
+	/** —descendant-of→(thing)—descendant-of→ implies —descendant-of→ */
+	static InferenceRule transitiveRule() {
+		return new InferenceRule(
+				json("[{\"!class\":\"Thing\"},{\"!class\":\"Thing\"},{\"!class\":\"Thing\"},"
+						+ "{\"!class\":\"Connection\",\"from\":0,\"relation\":\"descendant-of\",\"to\":1},"
+						+ "{\"!class\":\"Connection\",\"from\":1,\"relation\":\"descendant-of\",\"to\":2}]"),
+				json("[{\"!class\":\"Connection\",\"from\":0,\"relation\":\"descendant-of\",\"to\":2}]"));
+	}
+
+	/// a database holding a line of people, each the child of the next
+	static Database line(int people, Thing[] made) {
+		Database db = new Database();
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "a long line");
+		db.add(es.citation, es);
+		for (int i = 0; i < people; i += 1) {
+			made[i] = new Thing(es);
+			db.add(made[i]);
+			if (i > 0) db.add(new Connection(es, made[i - 1], "child-of", made[i]));
+		}
+		return db;
+	}
+
+	@Test
+	public void testFixpoint() {
+		Thing[] people = new Thing[5];
+		Database db = line(5, people);
+		InferenceEngine engine = new InferenceEngine(db, Arrays.asList(childRule(), transitiveRule()));
+		// each pair is derived once, however many ways the line between them can be split
+		assertEquals("inferences", 4 + 3 + 2 + 1, engine.run());
+		assertTrue("fixpoint", engine.reachedFixpoint());
+		assertEquals("descendant-of", 10, db.related("descendant-of").size());
+		assertEquals("Inference nodes", 10, db.count(Inference.class));
+		int far = 0;
+		for (Claim c : db.related("descendant-of")) {
+			Connection k = (Connection) c;
+			if (k.from.equals(people[0]) && k.to.equals(people[4])) far += 1;
+		}
+		assertEquals("derivations of the longest pair", 1, far);
+
+		assertEquals("nothing more to derive", 0, engine.run());
+		Thing extra = new Thing(people[0].source);
+		db.add(extra, new Connection(people[0].source, people[4], "child-of", extra));
+		assertTrue("incremental", engine.run() > 0);
+		assertEquals("rerun from scratch", 0, new InferenceEngine(db).run());
+
+		Thing[] three = new Thing[3];
+		Database stated = line(3, three);
+		stated.add(new Connection(three[0].source, three[0], "descendant-of", three[2])); // stated outright, not inferred
+		assertEquals("a claim already stated is not derived again", 2, new InferenceEngine(stated, Arrays.asList(childRule(), transitiveRule())).run());
+
+		Database longer = line(40, new Thing[40]);
+		assertEquals("one per pair in a long line", 40 * 39 / 2, new InferenceEngine(longer, Arrays.asList(childRule(), transitiveRule())).run());
+	}
+
+	@Test
+	public void testXrefAndRounds() {
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "namesakes");
+		Thing a = new Thing(es), b = new Thing(es), c = new Thing(es);
+		Database db = new Database();
+		db.add(es.citation, es, a, b, c, new Property(es, a, "name", "Jim"), new Property(es, b, "name", "Jim"), new Property(es, c, "name", "Ann"));
+		InferenceRule namesake = new InferenceRule(
+				json("[{\"!class\":\"Property\",\"key\":\"name\"},{\"!class\":\"Property\",\"key\":\"name\",\"value\":\"!xref:0.value\"}]"),
+				json("[{\"!class\":\"Connection\",\"from\":0,\"relation\":\"namesake\",\"to\":1}]"));
+		assertEquals("ordered pairs, including each with itself", 5, new InferenceEngine(db, Arrays.asList(namesake)).run());
+
+		Thing[] people = new Thing[9];
+		db = line(9, people);
+		InferenceEngine engine = new InferenceEngine(db, Arrays.asList(childRule(), transitiveRule()));
+		engine.setMaxRounds(2);
+		engine.run();
+		assertEquals("rounds", 2, engine.rounds());
+		assertTrue("stopped early", !engine.reachedFixpoint());
+	}
+
+	@Test
+	public void testParallel() throws InterruptedException {
+		Random r = new Random(1);
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "a big family");
+		List<Node> family = new ArrayList<Node>(Arrays.asList(es.citation, es));
+		Thing[] people = new Thing[2000];
+		for (int i = 0; i < people.length; i += 1) {
+			people[i] = new Thing(es);
+			family.add(people[i]);
+			if (i > 0) family.add(new Connection(es, people[i], "child-of", people[r.nextInt(i)]));
+		}
+		Database[] dbs = new Database[2];
+		for (int d = 0; d < dbs.length; d += 1) {
+			dbs[d] = new Database();
+			for (Node n : family)
+				dbs[d].add(n);
+		}
+		InferenceRule grandchild = new InferenceRule(
+				json("[{\"!class\":\"Thing\"},{\"!class\":\"Thing\"},{\"!class\":\"Thing\"},"
+						+ "{\"!class\":\"Connection\",\"from\":0,\"relation\":\"child-of\",\"to\":1},"
+						+ "{\"!class\":\"Connection\",\"from\":1,\"relation\":\"child-of\",\"to\":2}]"),
+				json("[{\"!class\":\"Connection\",\"from\":0,\"relation\":\"grandchild-of\",\"to\":2}]"));
+		List<InferenceRule> rules = Arrays.asList(childRule(), grandchild);
+		int one = new InferenceEngine(dbs[0], rules).run();
+		int four = new InferenceEngine(dbs[1], rules).run(4);
+		assertEquals("inferences", one, four);
+		assertTrue("found some", one > 2000);
+		assertEquals("size", dbs[0].size(), dbs[1].size());
+		for (int i = 0; i < dbs[0].size(); i += 1)
+			assertEquals("same node in the same place", dbs[0].uuidOf(i), dbs[1].uuidOf(i));
+	}
+
+	@Test
+	public void testListening() {
+		InferenceRule namesake = new InferenceRule(
+				json("[{\"!class\":\"Property\",\"key\":\"name\"},{\"!class\":\"Property\",\"key\":\"name\",\"value\":\"!xref:0.value\"}]"),
+				json("[{\"!class\":\"Connection\",\"from\":0,\"relation\":\"namesake\",\"to\":1}]"));
+		InferenceRule elder = new InferenceRule( // two unrelated antecedents, so found by scanning
+				json("[{\"!class\":\"Property\",\"key\":\"born\"},{\"!class\":\"Property\",\"key\":\"!re:born|died\",\"value\":\"!re:1[0-7]..\"}]"),
+				json("[{\"!class\":\"Connection\",\"from\":0,\"relation\":\"contemporary\",\"to\":1}]"));
+		List<InferenceRule> rules = Arrays.asList(childRule(), transitiveRule(), namesake, elder);
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "a family");
+		Database live = new Database();
+		live.add(es.citation, es);
+		InferenceEngine engine = new InferenceEngine(live, rules);
+		engine.setAlphaLimit(3);
+		assertEquals("nothing to start with", 0, engine.listen());
+		List<Node> added = new ArrayList<Node>();
+		Thing[] people = new Thing[6];
+		for (int i = 0; i < people.length; i += 1) {
+			people[i] = new Thing(es);
+			added.add(people[i]);
+			added.add(new Property(es, people[i], "name", i % 2 == 0 ? "Jim" : "Ann"));
+			added.add(new Property(es, people[i], "born", (1650 + 30 * i) + ""));
+			if (i > 0) added.add(new Connection(es, people[i - 1], "child-of", people[i]));
+		}
+		for (Node n : added) {
+			int before = engine.inferred();
+			live.add(n);
+			if (n instanceof Connection) assertTrue("derived as soon as added", engine.inferred() > before);
+		}
+		assertTrue("fixpoint", engine.reachedFixpoint());
+		engine.stopListening();
+
+		Database batch = new Database();
+		batch.add(es.citation, es);
+		batch.add(added.toArray(new Node[added.size()]));
+		assertEquals("same as a batch run", new InferenceEngine(batch, rules).run(), engine.inferred());
+		assertEquals("same nodes", batch.size(), live.size());
+		assertEquals("same claims", connections(batch), connections(live));
+	}
+
+	/// every Connection in db, described without its source, which depends on which derivation was found first
+	private static Set<String> connections(Database db) {
+		Set<String> ans = new HashSet<String>();
+		for (Connection k : db.ofClass(Connection.class))
+			ans.add(k.from.getUUID() + " " + k.relation + " " + k.to.getUUID());
+		return ans;
+	}
+}
@@ -0,0 +1,108 @@
+package org.rootsdev.polygenea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.junit.Test;
+import org.rootsdev.polygenea.nodes.Citation;
+import org.rootsdev.polygenea.nodes.Connection;
+import org.rootsdev.polygenea.nodes.ExternalSource;
+import org.rootsdev.polygenea.nodes.Inference;
+import org.rootsdev.polygenea.nodes.InferenceRule;
+import org.rootsdev.polygenea.nodes.Property;
+import org.rootsdev.polygenea.nodes.Thing;
+
+public class TestInferenceRule {
+
+	@SuppressWarnings("unchecked")
+	private static List<SortedMap<String, Object>> json(String s) {
+		return (List<SortedMap<String, Object>>) JSONParser.parse(s);
+	}
+
+	@Test
+	public void testConsequents() {
+		InferenceRule rule = new InferenceRule(
+				json("[{\"!class\":\"Thing\"},{\"!class\":\"Thing\"},{\"!class\":\"Connection\",\"from\":0,\"relation\":\"!re:(son|daughter)-of\",\"to\":1}]"),
+				json("[{\"!class\":\"Connection\",\"from\":1,\"relation\":\"parent-of\",\"to\":0},{\"!class\":\"Property\",\"subject\":1,\"key\":\"role\",\"value\":\"parent\"}]"));
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "Jim is Ann's son");
+		Thing jim = new Thing(es), ann = new Thing(es);
+		Connection son = new Connection(es, jim, "son-of", ann);
+		Connection wed = new Connection(es, jim, "spouse-of", ann);
+
+		assertTrue(rule.matches(jim, ann, son));
+		assertFalse(rule.matches(jim, ann, wed));
+		assertFalse(rule.matches(ann, jim, son));
+		assertFalse(rule.matches(jim, ann));
+		assertFalse(rule.mightMatch(2, wed));
+		assertTrue(rule.mightMatch(2, son));
+		assertNull(rule.consequentsOf(jim, ann, wed));
+
+		Node[] made = rule.consequentsOf(jim, ann, son);
+		assertEquals(3, made.length);
+		assertTrue(made[0] instanceof Inference);
+		Connection parent = (Connection) made[1];
+		assertSame("reversed from", ann, parent.from);
+		assertSame("reversed to", jim, parent.to);
+		assertSame("sourced to the inference", made[0], parent.source);
+		assertEquals("parent", ((Property) made[2]).value);
+		assertSame("second consequent", ann, ((Property) made[2]).subject);
+	}
+
+	@Test
+	public void testValueMatches() {
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "two Jims");
+		Thing a = new Thing(es), b = new Thing(es);
+		Property p = new Property(es, a, "name", "Jim");
+		Property q = new Property(es, b, "name", "Jim");
+		Property r = new Property(es, b, "name", "James");
+		InferenceRule same = new InferenceRule(
+				json("[{\"!class\":\"Property\",\"key\":\"name\"},{\"!class\":\"Property\",\"key\":\"name\",\"value\":\"!xref:0.value\"}]"),
+				json("[{\"!class\":\"Note\",\"about\":[0,1],\"note\":\"same name\"}]"));
+		assertTrue(same.matches(p, q));
+		assertFalse(same.matches(p, r));
+		assertTrue(same.mightMatch(1, r)); // the xref is not checked on its own
+
+		assertTrue(InferenceRule.valueMatches(Arrays.asList("a", "b"), "!contains:\"b\""));
+		assertFalse(InferenceRule.valueMatches(Arrays.asList("a", "b"), "!contains:\"c\""));
+		assertTrue(InferenceRule.valueMatches(Arrays.asList("ab", "c"), Arrays.asList("!re:a.", "c")));
+		assertTrue(InferenceRule.valueMatches(a, 1L, b, a));
+		assertFalse(InferenceRule.valueMatches(a, 0L, b, a));
+	}
+
+	@Test
+	public void testStructure() {
+		InferenceRule rule = new InferenceRule(
+				json("[{\"subject\":1,\"key\":\"name\",\"value\":\"!re:J.*\"},{\"!class\":\"Thing\"},{\"!class\":\"Property\",\"subject\":1,\"value\":\"!xref:0.value\"},{\"!class\":\"Grouping\",\"subjects\":[1,\"x\",3]}]"),
+				json("[{\"!class\":\"Note\",\"about\":[0,2],\"note\":\"two names\"}]"));
+		List<InferenceRule.Link> links = rule.links();
+		assertEquals("links", 4, links.size());
+		assertEquals("owner", 0, links.get(0).owner);
+		assertEquals("field", "subject", links.get(0).field);
+		assertEquals("not in a list", -1, links.get(0).position);
+		assertEquals("target", 1, links.get(0).target);
+		assertEquals("in a list", 2, links.get(3).position);
+		assertEquals("xlinks", 1, rule.xlinks().size());
+		assertEquals("xlink owner", 2, rule.xlinks().get(0).owner);
+		assertEquals("xlink from", 0, rule.xlinks().get(0).from);
+		assertEquals("xlink other", "value", rule.xlinks().get(0).other);
+		assertEquals("constants", Collections.singletonMap("key", "name"), rule.constants(0));
+		assertTrue("patterns are not constants", rule.constants(2).isEmpty());
+
+		ExternalSource es = new ExternalSource(new Citation("type", "imagination"), "Jim");
+		Thing jim = new Thing(es);
+		Property name = new Property(es, jim, "name", "Jim");
+		Connection self = new Connection(es, jim, "self", jim);
+		for (int i = 0; i < 3; i += 1) { // one antecedent, claims of two classes in turn
+			assertTrue("property", rule.mightMatch(0, name));
+			assertFalse("connection", rule.mightMatch(0, self));
+		}
+	}
+}
@@ -2,7 +2,10 @@ package org.rootsdev.polygenea;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.TreeMap;
 
@@ -202,4 +205,46 @@ public class TestJSONParser {
 	public void tleado() {
 		JSONParser.parse("{,\"a\":1}");
 	}
+	
+	/////////////////// ELEMENTS ///////////////////////
+	@Test
+	public void telements() {
+		JSONParser.ElementReader r = new JSONParser.ElementReader(new StringReader(" [1, \"a\" ,[]\n,{}] "));
+		assertEquals(r.isList(), true);
+		assertEquals(r.next(), Long.valueOf(1));
+		assertEquals(r.next(), "a");
+		assertEquals(r.next(), new LinkedList<Object>());
+		assertEquals(r.next(), new TreeMap<String,Object>());
+		assertEquals(r.hasNext(), false);
+	}
+	@Test
+	public void telementsingle() {
+		JSONParser.ElementReader r = new JSONParser.ElementReader(new StringReader("{}"));
+		assertEquals(r.isList(), false);
+		assertEquals(r.next(), new TreeMap<String,Object>());
+		assertEquals(r.hasNext(), false);
+	}
+	@Test
+	public void telementempty() {
+		assertEquals(new JSONParser.ElementReader(new StringReader("[ ]")).hasNext(), false);
+	}
+	@Test(expected=MalformedJSONException.class)
+	public void telementtrail() {
+		JSONParser.ElementReader r = new JSONParser.ElementReader(new StringReader("[1,]"));
+		r.next();
+	}
+	@Test
+	public void tresetfails() {
+		StringReader r = new StringReader("{\"a\":1,}") {
+			public void reset() throws IOException {
+				throw new IOException("cannot reset");
+			}
+		};
+		try {
+			JSONParser.parse(r);
+			fail("parsed a trailing comma");
+		} catch (MalformedJSONException ex) {
+			assertEquals("Trailing commas not allowed", ex.getMessage());
+		}
+	}
 }
@@ -41,4 +41,10 @@ public class TestUUID5 {
 	public void testPolygenea5() {
 		assertEquals(UUID.fromString("a282126e-598a-557b-adb9-7efa7dc5ac49"), UUID5.fromUTF8(UUID5.fromUTF8(null, "polygenea"), "polygenea"));
 	}
+
+	@Test
+	public void testCharSequence() throws Exception {
+		String name = "Zo\u00eb \u5f20 \ud83c\udf33 \ud800";
+		assertEquals(UUID5.fromBytes(UUID5.POLYGENEA_NAMESPACE, name.getBytes("UTF-8")), UUID5.fromUTF8(UUID5.POLYGENEA_NAMESPACE, new StringBuilder(name)));
+	}
 }